@@ -811,6 +811,12 @@ public abstract class Command {
       return targetLabel;
     }
 
+    /** 対象ラベルが設定されているか。
+     * 読込時、システムに戻るジャンプ（ラベル番号１）には設定されない */
+    public boolean hasTargetLabel() {
+      return targetLabel != null;
+    }
+
     protected void read(HTCReader reader) {
       labelNumber = reader.getInt(4);
     }
@@ -843,18 +849,32 @@ public abstract class Command {
   
   public static final class JumpIf extends AbstractJump {
 
-    public Comp comp;
-    public Register register;
-    public Object value;
+    public final Comp comp;
+    public final Register register;
+    public final Object value;
 
-    /** 作成 */
-    public JumpIf() {
-      super(Cmd.JumpIf);
+    /** 比較値。定数は左辺の型に変換済み。作成時に設定される */
+    protected final Object operand;
+
+    /** 比較値を取得する。レジスタか、左辺の型に変換済みの定数 */
+    public Object getOperand() {
+      return operand;
+    }
+
+    /** 比較値を左辺の型に変換する */
+    private Object toOperand() {
+      if (value instanceof Register) return value;
+      return register.type().convert(value);
     }
 
     public JumpIf(HTCReader reader) {
-      this();
-      read(reader);
+      super(Cmd.JumpIf);
+      super.read(reader);
+      comp = reader.getComp();
+      register = reader.getRegister();
+      assert(register != null && comp != null);
+      value = readValue(reader, register);
+      operand = toOperand();
     }
 
     public JumpIf(Register register, Comp comp, Object value, int number) {
@@ -864,6 +884,7 @@ public abstract class Command {
       this.value = register.type().convert(value);
       this.labelNumber = number;
       assert(number != 0);
+      operand = toOperand();
     }
 
     public JumpIf(Register register, Comp comp, Object value, Label label) {
@@ -873,29 +894,33 @@ public abstract class Command {
       this.value = register.type().convert(value);
       assert(label != null);
       this.targetLabel = label;
+      operand = toOperand();
     }
 
-    @Override
-    protected void read(HTCReader reader) {
+    /** 読込済みの値から作成する。valueはレジスタか、左辺の型の定数 */
+    public JumpIf(int number, Comp comp, Register register, Object value) {
+      super(Cmd.JumpIf, number);
+      this.comp = comp;
+      this.register = register;
+      this.value = value;
+      operand = toOperand();
+    }
 
-      //labelNumber = reader.getInt(4);
-      super.read(reader);
-      comp = reader.getComp();
-      register = reader.getRegister();
+    /** 比較値を読み込む */
+    private static Object readValue(HTCReader reader, Register register) {
       SJIS sjis = reader.getAllBytes();
-      assert(register != null && comp != null);
 
       // ここの仕様はかなりいい加減。比較対象がレジスター名称であれば
       // そのレジスターの内容と比較するが、そうでなければ値として比較するように
       // なっているらしい。
 
-      value = Register.findRegister(sjis);
+      Register value = Register.findRegister(sjis);
       if (value != null) {
-        if (register.type() != ((Register)value).type())
+        if (register.type() != value.type())
           reader.parseException();
-        return;
+        return value;
       }
-      value = register.type().convert(sjis);
+      return register.type().convert(sjis);
     }
 
     @Override
@@ -1430,20 +1455,32 @@ public abstract class Command {
       inhibitRegs.add(Register.ENDKY);
     }
 
-    public Register dst;
-    public Object src;
+    public final Register dst;
+    public final Object src;
 
-    private Assign() {
-      super(Cmd.Assign);
+    /** 代入元。定数は代入先の型に変換済み。作成時に設定される */
+    protected final Object operand;
+
+    /** 代入元を取得する。レジスタか、代入先の型に変換済みの定数 */
+    public Object getOperand() {
+      return operand;
+    }
+
+    /** 代入元を代入先の型に変換する */
+    private Object toOperand() {
+      if (src instanceof Register) return src;
+      return dst.type().convert(src);
     }
 
     public Assign(HTCReader reader) {
-      this();
-      read(reader);
+      super(Cmd.Assign);
+      dst = reader.getRegister();
+      src = readSrc(reader, dst);
+      operand = toOperand();
     }
 
     public Assign(Register dst, Object src) {
-      this();
+      super(Cmd.Assign);
       assert(dst != null && !dst.system());
       this.dst = dst;
       this.src = src;
@@ -1460,10 +1497,11 @@ public abstract class Command {
         // その際、強制的に文字列に変換する。
         src = new SJIS("" + src);
       }
+      operand = toOperand();
     }
 
-    protected void read(HTCReader reader) {
-      dst = reader.getRegister();
+    /** 代入元を読み込む */
+    private static Object readSrc(HTCReader reader, Register dst) {
       SJIS srcBytes = reader.getAllBytes();
 
       // srcはレジスタか？
@@ -1471,12 +1509,11 @@ public abstract class Command {
       if (register != null) {
         // srcがレジスタの場合、その型がdstと一致しない場合も可
         //assert(dst.type() == register.type());
-        src = register;
-        return;
+        return register;
       }
 
       // srcは値である。dstの型に一致するよう変換する。
-      src = dst.type().convert(srcBytes);
+      return dst.type().convert(srcBytes);
     }
 
     @Override
@@ -0,0 +1,371 @@
+package com.cm55.phl;
+
+import java.nio.*;
+import java.util.*;
+
+import com.cm55.phl.Command.*;
+import com.cm55.phl.PHL.*;
+
+/**
+ * HTCBinaryWriterで書き込まれたバイナリ形式の読込
+ * <p>
+ * 与えられたByteBufferから直接読み込む。中間のストリームや文字列は作成しない。
+ * ただしSJISはバイト配列全体を保持するので、文字列はバッファの一部を
+ * 参照せず、文字列ごとにちょうどの長さの配列に一度だけコピーする。
+ * 読込エラーの場合はReadExceptionを投げるが、その行番号としてはバッファ中の
+ * 位置が設定される。
+ * </p>
+ */
+public class HTCBinaryReader {
+
+  /** 全コマンド種類 */
+  private static final Cmd[]CMDS = Cmd.values();
+
+  /** 全レジスタ */
+  private static final Register[]REGISTERS = Register.values();
+
+  /** 全キー */
+  private static final Key[]KEYS = Key.values();
+
+  /** 入力バッファ */
+  protected ByteBuffer buffer;
+
+  /** 読込対象のバッファを指定して作成する。バッファの位置は読込とともに進む */
+  public HTCBinaryReader(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  /** バイナリからHTCCodeを作成する */
+  public static HTCCode decode(ByteBuffer buffer) {
+    return new HTCBinaryReader(buffer).getCode();
+  }
+
+  /** 残りがあるか */
+  public boolean hasRemaining() {
+    return buffer.hasRemaining();
+  }
+
+  /** コード全体を読み込む */
+  public HTCCode getCode() {
+    for (byte b: HTCBinaryWriter.MAGIC) {
+      if (getByte() != b) readException("バイナリ形式ではありません");
+    }
+    if (getByte() != HTCBinaryWriter.VERSION)
+      readException("バイナリ形式のバージョンが異なります");
+    Title title = getTitle();
+    int count = getInt();
+    List<Command>commands = new ArrayList<Command>(count);
+    for (int i = 0; i < count; i++)
+      commands.add(getCommand());
+    return new HTCCode(title, commands);
+  }
+
+  /** コマンドを一つ読み込む */
+  public Command getCommand() {
+    Cmd cmd = getEnum(CMDS);
+    switch (cmd) {
+    case Title:
+      return getTitle();
+    case Label: {
+      Label c = new Label();
+      c.setNumber(getInt());
+      c.setOffset(getInt());
+      return c;
+    }
+    case Jump:
+      return new Jump(getInt());
+    case JumpIf: {
+      int number = getInt();
+      Comp comp = getEnum(Comp.values());
+      Register register = getRegister();
+      return new JumpIf(number, comp, register, getValue());
+    }
+    case Assign: {
+      Register dst = getRegister();
+      return new Assign(dst, getValue());
+    }
+    case StringConcat: {
+      Register srcReg1 = getRegister();
+      int srcPos1 = getInt();
+      int srcSize1 = getInt();
+      Register srcReg2 = getRegister();
+      int srcPos2 = getInt();
+      int srcSize2 = getInt();
+      Register dstReg = getRegister();
+      int dstPos = getInt();
+      return new StringConcat(dstReg, dstPos, srcReg1, srcPos1, srcSize1,
+          srcReg2, srcPos2, srcSize2);
+    }
+    case ExtractCopy: {
+      Register src = getRegister();
+      int srcIndex = getInt();
+      int srcSize = getInt();
+      Register dst = getRegister();
+      int dstIndex = getInt();
+      return new ExtractCopy(dst, dstIndex, src, srcIndex, srcSize);
+    }
+    case StringShift: {
+      Register register = getRegister();
+      int size = getInt();
+      boolean right = getBoolean();
+      return new StringShift(register, size, right, getByte());
+    }
+    case NumberToString: {
+      Register dst = getRegister();
+      return new NumberToString(dst, getRegister());
+    }
+    case VariableInit:
+      return new VariableInit(getRegister());
+    case RecordWrite: {
+      Filename filename = getFilename();
+      int recordLen = getInt();
+      boolean crlf = getBoolean();
+      Register register = getRegister();
+      return new RecordWrite(filename, recordLen, register, getBoolean(), crlf);
+    }
+    case RecordRead: {
+      Filename filename = getFilename();
+      int recordLen = getInt();
+      Register register = getRegister();
+      return new RecordRead(filename, recordLen, register,
+          getEnum(FilePos.values()));
+    }
+    case RecordCount: {
+      Filename filename = getFilename();
+      int recordLen = getInt();
+      return new RecordCount(filename, recordLen, getRegister());
+    }
+    case FileDelete:
+      return new FileDelete(getFilename());
+    case FileExists:
+      return new FileExists(getFilename());
+    case MasterSearch: {
+      Filename filename = getFilename();
+      int recordLen = getInt();
+      Register keyReg1 = getRegister();
+      int keyPos1 = getInt();
+      int keySize1 = getInt();
+      MasterSearch c = new MasterSearch(filename, recordLen,
+          keyReg1, keyPos1, keySize1, null);
+      c.keyReg2 = getRegister();
+      c.keyPos2 = getInt();
+      c.keySize2 = getInt();
+      c.method = getInt();
+      c.filePos = getEnum(FilePos.values());
+      c.resultReg = getRegister();
+      return c;
+    }
+    case EchoedInput: {
+      int x = getInt();
+      int y = getInt();
+      Register register = getRegister();
+      int columns = getInt();
+      boolean noEcho = getBoolean();
+      FullAction fullAction = getEnum(FullAction.values());
+      EchoedInput c = new EchoedInput(y, x, register, columns, getKeySet())
+        .setNoEcho(noEcho)
+        .setFullAction(fullAction);
+      c.cursor = getEnum(CursorShape.values());
+      c.minus = getBoolean();
+      return c;
+    }
+    case BarcodeInput: {
+      int x = getInt();
+      int y = getInt();
+      Register register = getRegister();
+      int columns = getInt();
+      boolean viblation = getBoolean();
+      boolean continuedScan = getBoolean();
+      boolean buzzarLed = getBoolean();
+      boolean keyInterruption = getBoolean();
+      boolean ignoreTriggerButton = getBoolean();
+      BarcodeInput c = new BarcodeInput(y, x, register, columns, getKeySet());
+      c.viblation = viblation;
+      c.continuedScan = continuedScan;
+      c.buzzarLed = buzzarLed;
+      c.keyInterruption = keyInterruption;
+      c.ignoreTriggerButton = ignoreTriggerButton;
+      c.setFullAction(getEnum(FullAction.values()));
+      c.underbarCursor = getBoolean();
+      return c;
+    }
+    case BarcodeInfo: {
+      int number = getInt();
+      switch (number) {
+      case 1: {
+        BarcodeInfoSub1 sub = new BarcodeInfoSub1();
+        sub.barcodeMap = getInt();
+        return new BarcodeInfo(sub);
+      }
+      case 2: {
+        BarcodeInfoSub2 sub = new BarcodeInfoSub2();
+        for (int i = 0; i < sub.yomitoriketa.length; i++)
+          sub.yomitoriketa[i] = getInt();
+        sub.buzzarFreq = getInt();
+        sub.buzzarMs = getInt();
+        sub.lazar = getInt();
+        sub.shougou = getInt();
+        sub.vib = getInt();
+        return new BarcodeInfo(sub);
+      }
+      default:
+        break;
+      }
+      readException("バーコード情報番号がわかりません");
+      return null;
+    }
+    case NoEchoInput:
+      return new NoEchoInput(getRegister());
+    case DisplayString: {
+      int x = getInt();
+      int y = getInt();
+      int clearBytes = getInt();
+      return new DisplayString(y, x, getSJIS()).setClear(clearBytes);
+    }
+    case DisplayClear:
+      return new DisplayClear();
+    case DisplayPartClear: {
+      int x = getInt();
+      int y = getInt();
+      DisplayPartClear c = new DisplayPartClear(y, x, getInt());
+      c.dispAttr = getByte();
+      return c;
+    }
+    case DisplayRegister: {
+      int x = getInt();
+      int y = getInt();
+      boolean quarter = getBoolean();
+      boolean reverse = getBoolean();
+      int start = getInt();
+      int length = getInt();
+      DisplayRegister c = new DisplayRegister(y, x, getRegister(), start, length);
+      c.quarter = quarter;
+      c.reverse = reverse;
+      c.clearBytes = getInt();
+      return c;
+    }
+    case CommUpload:
+    case CommDownload: {
+      Filename filename = getFilename();
+      UpDownload c;
+      if (cmd == Cmd.CommUpload) c = new CommUpload(filename);
+      else {
+        c = new CommDownload();
+        c.filename = filename;
+      }
+      c.gaugeKind = getInt();
+      c.gaugeLine = getInt();
+      int key = getByte();
+      c.stopKey = key == 0? null:KEYS[key - 1];
+      return c;
+    }
+    case WaitMS:
+      return new WaitMS(getInt());
+    }
+    readException("未サポートのコマンドです：" + cmd);
+    return null;
+  }
+
+  /** タイトルのパラメータを読み込む */
+  protected Title getTitle() {
+    SJIS title = getSJIS();
+    SJIS version = getSJIS();
+    return new Title(title, version)
+      .setStartScreen(getEnum(StartScreen.values()))
+      .setClickSound(getBoolean())
+      .setProfile(getEnum(Profile.values()));
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // 基本型
+  /////////////////////////////////////////////////////////////////////////////
+
+  /** １バイト読み込む */
+  public byte getByte() {
+    if (!buffer.hasRemaining()) readException("データが足りません");
+    return buffer.get();
+  }
+
+  /** 真偽値を読み込む */
+  public boolean getBoolean() {
+    return getByte() != 0;
+  }
+
+  /** ジグザグ符号化されたvarintを読み込む */
+  public int getInt() {
+    int v = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = getByte();
+      v |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return (v >>> 1) ^ -(v & 1);
+    }
+    readException("整数の形式が異常です");
+    return 0;
+  }
+
+  /** レジスタを読み込む。0はnull */
+  public Register getRegister() {
+    int value = getByte() & 0xFF;
+    if (value == 0) return null;
+    if (value > REGISTERS.length) readException("レジスタが異常です：" + value);
+    return REGISTERS[value - 1];
+  }
+
+  /** 列挙値を読み込む */
+  public <T extends Enum<T>> T getEnum(T[]values) {
+    int value = getByte() & 0xFF;
+    if (value >= values.length) readException("列挙値が異常です：" + value);
+    return values[value];
+  }
+
+  /** SJISを読み込む。長さちょうどの配列に一度だけコピーし、そのまま保持させる */
+  public SJIS getSJIS() {
+    int length = getInt();
+    if (length < 0 || length > buffer.remaining())
+      readException("文字列長さが異常です：" + length);
+    byte[]bytes = new byte[length];
+    buffer.get(bytes);
+    return SJIS.wrap(bytes);
+  }
+
+  /** キーセットを読み込む */
+  public EnumSet<Key>getKeySet() {
+    int mask = getInt();
+    EnumSet<Key>keySet = EnumSet.noneOf(Key.class);
+    for (Key key: KEYS) {
+      if ((mask & (1 << key.ordinal())) != 0) keySet.add(key);
+    }
+    return keySet;
+  }
+
+  /** ファイル名を読み込む */
+  public Filename getFilename() {
+    switch (getByte()) {
+    case HTCBinaryWriter.FILENAME_NULL: return null;
+    case HTCBinaryWriter.FILENAME_SJIS: return new Filename(getSJIS());
+    case HTCBinaryWriter.FILENAME_REGISTER: return new Filename(getRegister());
+    default:
+      readException("ファイル名の形式が異常です");
+      return null;
+    }
+  }
+
+  /** タグ付きの値を読み込む */
+  public Object getValue() {
+    switch (getByte()) {
+    case HTCBinaryWriter.VALUE_REGISTER: return getRegister();
+    case HTCBinaryWriter.VALUE_SJIS: return getSJIS();
+    case HTCBinaryWriter.VALUE_INTEGER: return getInt();
+    case HTCBinaryWriter.VALUE_FLOAT:
+      if (buffer.remaining() < 4) readException("データが足りません");
+      return Float.intBitsToFloat(buffer.getInt());
+    default:
+      readException("値の形式が異常です");
+      return null;
+    }
+  }
+
+  public void readException(String s) {
+    throw new ReadException(buffer.position(), s);
+  }
+}
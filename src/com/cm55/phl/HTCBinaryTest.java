@@ -0,0 +1,98 @@
+package com.cm55.phl;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import org.junit.*;
+
+import com.cm55.phl.Command.*;
+import com.cm55.phl.PHL.*;
+import com.cm55.phl.gen.*;
+import com.cm55.phl.gen.Macro.*;
+
+public class HTCBinaryTest {
+
+  /** テキスト形式→バイナリ形式→テキスト形式で同じバイト列になる */
+  @Test
+  public void textRoundTrip() throws IOException {
+    byte[]text = generate();
+    HTCCode code = new HTCCode(new ByteArrayInputStream(text));
+
+    HTCCode decoded = HTCBinaryReader.decode(HTCBinaryWriter.encode(code));
+    assertEquals(code.numCommands(), decoded.numCommands());
+    for (int i = 0; i < code.numCommands(); i++)
+      assertEquals(code.getCommand(i).cmd, decoded.getCommand(i).cmd);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new HTCWriter(out).putCode(decoded);
+    assertArrayEquals(text, out.toByteArray());
+  }
+
+  /** バイナリ形式→コード→バイナリ形式で同じバイト列になる */
+  @Test
+  public void binaryRoundTrip() throws IOException {
+    HTCCode code = new HTCCode(new ByteArrayInputStream(generate()));
+    byte[]first = toArray(HTCBinaryWriter.encode(code));
+    byte[]second = toArray(HTCBinaryWriter.encode(HTCBinaryReader.decode(ByteBuffer.wrap(first))));
+    assertArrayEquals(first, second);
+  }
+
+  /** 値の種類が保存される */
+  @Test
+  public void operands() throws IOException {
+    HTCCode code = new HTCCode(new ByteArrayInputStream(generate()));
+    HTCCode decoded = HTCBinaryReader.decode(HTCBinaryWriter.encode(code));
+    for (int i = 0; i < code.numCommands(); i++) {
+      Command command = code.getCommand(i);
+      if (command instanceof Assign) {
+        assertEquals(((Assign)command).src, ((Assign)decoded.getCommand(i)).src);
+      } else if (command instanceof JumpIf) {
+        JumpIf jump = (JumpIf)command;
+        JumpIf other = (JumpIf)decoded.getCommand(i);
+        assertEquals(jump.value, other.value);
+        assertEquals(jump.getTargetLabel().getIndex(), other.getTargetLabel().getIndex());
+      }
+    }
+  }
+
+  /** バイナリ形式でないものはReadException */
+  @Test(expected = ReadException.class)
+  public void notBinary() throws IOException {
+    HTCBinaryReader.decode(ByteBuffer.wrap(generate()));
+  }
+
+  /** コマンド列から作成したコードはテキスト形式のコードバイトを持たない */
+  @Test(expected = WriteException.class)
+  public void noCodeBytes() throws IOException {
+    HTCCode code = new HTCCode(new ByteArrayInputStream(generate()));
+    HTCBinaryReader.decode(HTCBinaryWriter.encode(code)).outputHtc(new ByteArrayOutputStream());
+  }
+
+  private static byte[]generate() throws IOException {
+    Object body = new Compound(
+      new Assign(Register.INT1, 12),
+      new Assign(Register.FLT1, 1.5f),
+      new Assign(Register.DAT1, new SJIS("ABC")),
+      new DisplayClear(),
+      new DisplayString(0, 0, "HELLO"),
+      new EchoedInput(1, 0, Register.DAT2, 4, EnumSet.of(Key.F1)),
+      new If(Register.INT1, Comp.GT, 10,
+        new DisplayRegister(2, 0, Register.INT1, 0, 4),
+        new DisplayString(2, 0, "NG")),
+      new WaitMS(10)
+    );
+    Generator gen = new Generator(new Title("TEST", "1.0"), body);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    gen.outputHTC(out);
+    return out.toByteArray();
+  }
+
+  private static byte[]toArray(ByteBuffer buffer) {
+    byte[]bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,395 @@
+package com.cm55.phl;
+
+import java.nio.*;
+import java.util.*;
+
+import com.cm55.phl.Command.*;
+import com.cm55.phl.PHL.*;
+
+/**
+ * HTCコードのバイナリ形式での書き込み
+ * <p>
+ * テキスト形式(HTCWriter)と同じ内容を、よりコンパクトなバイナリ形式で出力する。
+ * 各コマンドは「オペコード(Cmd.ordinal)+パラメータ」として書き込まれる。
+ * </p>
+ * <ul>
+ * <li>整数はジグザグ符号化した可変長(varint)
+ * <li>レジスタは１バイト（ordinal + 1、nullは0）
+ * <li>SJISは長さ(varint)+バイト列
+ * <li>列挙型は１バイトのordinal
+ * </ul>
+ * <p>
+ * 読込はHTCBinaryReaderで行う。
+ * </p>
+ */
+public class HTCBinaryWriter {
+
+  /** マジックナンバー */
+  static final byte[]MAGIC = new byte[] { 'P', 'H', 'B' };
+
+  /** フォーマットバージョン */
+  static final byte VERSION = 1;
+
+  // 値のタグ
+  static final byte VALUE_REGISTER = 0;
+  static final byte VALUE_SJIS = 1;
+  static final byte VALUE_INTEGER = 2;
+  static final byte VALUE_FLOAT = 3;
+
+  // ファイル名のタグ
+  static final byte FILENAME_NULL = 0;
+  static final byte FILENAME_SJIS = 1;
+  static final byte FILENAME_REGISTER = 2;
+
+  /** 出力バッファ */
+  protected ByteBuffer buffer;
+
+  public HTCBinaryWriter() {
+    this(256);
+  }
+
+  /** 初期容量を指定して作成する */
+  public HTCBinaryWriter(int capacity) {
+    buffer = ByteBuffer.allocate(capacity);
+  }
+
+  /** HTCCodeをバイナリ化する */
+  public static ByteBuffer encode(HTCCode code) {
+    HTCBinaryWriter writer = new HTCBinaryWriter();
+    writer.putCode(code);
+    return writer.getBuffer();
+  }
+
+  /** 書き込んだ内容を読込可能なバッファとして取得する */
+  public ByteBuffer getBuffer() {
+    ByteBuffer result = buffer.duplicate();
+    result.flip();
+    return result;
+  }
+
+  /** 書き込んだ内容をバイト配列として取得する */
+  public byte[]toByteArray() {
+    return Arrays.copyOf(buffer.array(), buffer.position());
+  }
+
+  /** コード全体を書き込む。ヘッダ、タイトル、コマンド数、コマンド列の順 */
+  public void putCode(HTCCode code) {
+    ensure(MAGIC.length + 1);
+    buffer.put(MAGIC);
+    buffer.put(VERSION);
+    putTitle(code.getTitle());
+    int count = code.numCommands();
+    putInt(count);
+    for (int i = 0; i < count; i++)
+      putCommand(code.getCommand(i));
+  }
+
+  /** コマンドを一つ書き込む */
+  public void putCommand(Command command) {
+    putByte(command.cmd.ordinal());
+    switch (command.cmd) {
+    case Title:
+      putTitle((Title)command);
+      break;
+    case Label: {
+      Label c = (Label)command;
+      putInt(c.getNumber());
+      putInt(c.getOffset());
+      break;
+    }
+    case Jump:
+      putInt(((Jump)command).labelNumber);
+      break;
+    case JumpIf: {
+      JumpIf c = (JumpIf)command;
+      putInt(c.labelNumber);
+      putEnum(c.comp);
+      putRegister(c.register);
+      putValue(c.value);
+      break;
+    }
+    case Assign: {
+      Assign c = (Assign)command;
+      putRegister(c.dst);
+      putValue(c.src);
+      break;
+    }
+    case StringConcat: {
+      StringConcat c = (StringConcat)command;
+      putRegister(c.srcReg1);
+      putInt(c.srcPos1);
+      putInt(c.srcSize1);
+      putRegister(c.srcReg2);
+      putInt(c.srcPos2);
+      putInt(c.srcSize2);
+      putRegister(c.dstReg);
+      putInt(c.dstPos);
+      break;
+    }
+    case ExtractCopy: {
+      ExtractCopy c = (ExtractCopy)command;
+      putRegister(c.src);
+      putInt(c.srcIndex);
+      putInt(c.srcSize);
+      putRegister(c.dst);
+      putInt(c.dstIndex);
+      break;
+    }
+    case StringShift: {
+      StringShift c = (StringShift)command;
+      putRegister(c.register);
+      putInt(c.size);
+      putBoolean(c.right);
+      putByte(c.c);
+      break;
+    }
+    case NumberToString: {
+      NumberToString c = (NumberToString)command;
+      putRegister(c.dst);
+      putRegister(c.src);
+      break;
+    }
+    case VariableInit:
+      putRegister(((VariableInit)command).register);
+      break;
+    case RecordWrite: {
+      RecordWrite c = (RecordWrite)command;
+      putFilename(c.filename);
+      putInt(c.recordLen);
+      putBoolean(c.crlf);
+      putRegister(c.register);
+      putBoolean(c.overwrite);
+      break;
+    }
+    case RecordRead: {
+      RecordRead c = (RecordRead)command;
+      putFilename(c.filename);
+      putInt(c.recordLen);
+      putRegister(c.register);
+      putEnum(c.filePos);
+      break;
+    }
+    case RecordCount: {
+      RecordCount c = (RecordCount)command;
+      putFilename(c.filename);
+      putInt(c.recordLen);
+      putRegister(c.intReg);
+      break;
+    }
+    case FileDelete:
+      putFilename(((FileDelete)command).filename);
+      break;
+    case FileExists:
+      putFilename(((FileExists)command).filename);
+      break;
+    case MasterSearch: {
+      MasterSearch c = (MasterSearch)command;
+      putFilename(c.filename);
+      putInt(c.recordLen);
+      putRegister(c.keyReg1);
+      putInt(c.keyPos1);
+      putInt(c.keySize1);
+      putRegister(c.keyReg2);
+      putInt(c.keyPos2);
+      putInt(c.keySize2);
+      putInt(c.method);
+      putEnum(c.filePos);
+      putRegister(c.resultReg);
+      break;
+    }
+    case EchoedInput: {
+      EchoedInput c = (EchoedInput)command;
+      putInt(c.x);
+      putInt(c.y);
+      putRegister(c.register);
+      putInt(c.columns);
+      putBoolean(c.noEcho);
+      putEnum(c.fullAction);
+      putKeySet(c.specialKeys);
+      putEnum(c.cursor);
+      putBoolean(c.minus);
+      break;
+    }
+    case BarcodeInput: {
+      BarcodeInput c = (BarcodeInput)command;
+      putInt(c.x);
+      putInt(c.y);
+      putRegister(c.register);
+      putInt(c.columns);
+      putBoolean(c.viblation);
+      putBoolean(c.continuedScan);
+      putBoolean(c.buzzarLed);
+      putBoolean(c.keyInterruption);
+      putBoolean(c.ignoreTriggerButton);
+      putKeySet(c.specialKeys);
+      putEnum(c.fullAction);
+      putBoolean(c.underbarCursor);
+      break;
+    }
+    case BarcodeInfo: {
+      BarcodeInfoSub sub = ((BarcodeInfo)command).sub;
+      putInt(sub.number);
+      if (sub instanceof BarcodeInfoSub1) {
+        putInt(((BarcodeInfoSub1)sub).barcodeMap);
+      } else {
+        BarcodeInfoSub2 sub2 = (BarcodeInfoSub2)sub;
+        for (int i = 0; i < sub2.yomitoriketa.length; i++)
+          putInt(sub2.yomitoriketa[i]);
+        putInt(sub2.buzzarFreq);
+        putInt(sub2.buzzarMs);
+        putInt(sub2.lazar);
+        putInt(sub2.shougou);
+        putInt(sub2.vib);
+      }
+      break;
+    }
+    case NoEchoInput:
+      putRegister(((NoEchoInput)command).register);
+      break;
+    case DisplayString: {
+      DisplayString c = (DisplayString)command;
+      putInt(c.x);
+      putInt(c.y);
+      putInt(c.clearBytes);
+      putSJIS(c.sjis);
+      break;
+    }
+    case DisplayClear:
+      break;
+    case DisplayPartClear: {
+      DisplayPartClear c = (DisplayPartClear)command;
+      putInt(c.x);
+      putInt(c.y);
+      putInt(c.length);
+      putByte(c.dispAttr);
+      break;
+    }
+    case DisplayRegister: {
+      DisplayRegister c = (DisplayRegister)command;
+      putInt(c.x);
+      putInt(c.y);
+      putBoolean(c.quarter);
+      putBoolean(c.reverse);
+      putInt(c.start);
+      putInt(c.length);
+      putRegister(c.register);
+      putInt(c.clearBytes);
+      break;
+    }
+    case CommUpload:
+    case CommDownload: {
+      UpDownload c = (UpDownload)command;
+      putFilename(c.filename);
+      putInt(c.gaugeKind);
+      putInt(c.gaugeLine);
+      putByte(c.stopKey == null? 0:c.stopKey.ordinal() + 1);
+      break;
+    }
+    case WaitMS:
+      putInt(((WaitMS)command).ms);
+      break;
+    }
+  }
+
+  /** タイトルのパラメータを書き込む */
+  protected void putTitle(Title title) {
+    putSJIS(title.title);
+    putSJIS(title.version);
+    putEnum(title.startScreen);
+    putBoolean(title.clickSound);
+    putEnum(title.profile);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // 基本型
+  /////////////////////////////////////////////////////////////////////////////
+
+  /** １バイト書き込む */
+  public void putByte(int value) {
+    ensure(1);
+    buffer.put((byte)value);
+  }
+
+  /** 真偽値を書き込む */
+  public void putBoolean(boolean value) {
+    putByte(value? 1:0);
+  }
+
+  /** 整数をジグザグ符号化したvarintで書き込む */
+  public void putInt(int value) {
+    ensure(5);
+    int v = (value << 1) ^ (value >> 31);
+    while ((v & ~0x7F) != 0) {
+      buffer.put((byte)((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    buffer.put((byte)v);
+  }
+
+  /** レジスタを書き込む。nullは0 */
+  public void putRegister(Register register) {
+    putByte(register == null? 0:register.ordinal() + 1);
+  }
+
+  /** 列挙値を書き込む */
+  public void putEnum(Enum<?>e) {
+    putByte(e.ordinal());
+  }
+
+  /** SJISを長さとバイト列で書き込む */
+  public void putSJIS(SJIS sjis) {
+    putInt(sjis.length());
+    ensure(sjis.length());
+    buffer.put(sjis.bytes);
+  }
+
+  /** キーセットをordinalのビットマスクとして書き込む */
+  public void putKeySet(EnumSet<Key>keySet) {
+    int mask = 0;
+    for (Key key: keySet) mask |= 1 << key.ordinal();
+    putInt(mask);
+  }
+
+  /** ファイル名を書き込む */
+  public void putFilename(Filename filename) {
+    if (filename == null) {
+      putByte(FILENAME_NULL);
+      return;
+    }
+    if (filename.getSJIS() != null) {
+      putByte(FILENAME_SJIS);
+      putSJIS(filename.getSJIS());
+      return;
+    }
+    putByte(FILENAME_REGISTER);
+    putRegister(filename.getRegister());
+  }
+
+  /** JumpIfやAssignの値を、その型を示すタグとともに書き込む */
+  public void putValue(Object value) {
+    if (value instanceof Register) {
+      putByte(VALUE_REGISTER);
+      putRegister((Register)value);
+    } else if (value instanceof Integer) {
+      putByte(VALUE_INTEGER);
+      putInt((Integer)value);
+    } else if (value instanceof Float) {
+      putByte(VALUE_FLOAT);
+      ensure(4);
+      buffer.putInt(Float.floatToRawIntBits((Float)value));
+    } else {
+      putByte(VALUE_SJIS);
+      putSJIS(value instanceof SJIS? (SJIS)value:new SJIS("" + value));
+    }
+  }
+
+  /** 指定バイト数を書き込めるようにバッファを拡張する */
+  protected void ensure(int size) {
+    if (buffer.remaining() >= size) return;
+    int newSize = Math.max(buffer.position() + size, buffer.capacity() * 2);
+    ByteBuffer newBuffer = ByteBuffer.allocate(newSize);
+    buffer.flip();
+    newBuffer.put(buffer);
+    buffer = newBuffer;
+  }
+}
@@ -78,6 +78,26 @@ public class HTCCode  {
     }
 
     // ラベルにコマンド列中のインデックスをつける、ジャンプにラベルを設定する。
+    link(numberToLabel);
+  }
+
+  /** タイトルとコマンド列から作成する。
+   * バイナリ形式からの読込等で使用される。テキスト形式のコードバイトは持たないので、
+   * テキスト形式で出力する場合はHTCWriter.putCode()を使用すること。 */
+  public HTCCode(Title title, List<Command>commands) {
+    this.title = title;
+    commandList.addAll(commands);
+
+    Map<Integer,Label>numberToLabel = new HashMap<Integer,Label>();
+    for (Command command: commandList) {
+      if (command instanceof Label)
+        numberToLabel.put(((Label)command).getNumber(), (Label)command);
+    }
+    link(numberToLabel);
+  }
+
+  /** ラベルにコマンド列中のインデックスをつける、ジャンプにラベルを設定する。 */
+  protected void link(Map<Integer,Label>numberToLabel) {
     for (int i = 0; i < commandList.size(); i++) {
       Command command = commandList.get(i);
 
@@ -190,8 +210,11 @@ public class HTCCode  {
     }
   }
 
-  /** コードを出力 */
+  /** コードを出力。
+   * コマンド列から作成したものはコードバイトを持たないのでWriteExceptionとする */
   public void outputHtc(OutputStream out) throws IOException {
+    if (codeBytes == null)
+      throw new WriteException("テキスト形式のコードがありません");
     out.write(codeBytes);
   }
 }
@@ -86,6 +86,13 @@ public class SJIS  implements Comparable<SJIS> {
     }
   }
   
+  /** バイト配列をコピーせずにそのまま保持して作成する。内部使用 */
+  static SJIS wrap(byte[]input) {
+    SJIS sjis = new SJIS();
+    sjis.bytes = input;
+    return sjis;
+  }
+
   /** 指定バイト列のidx番目のバイトの種類を得る
    * 0:ANK、 1:漢字前半、2:漢字後半
    */
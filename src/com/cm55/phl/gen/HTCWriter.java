@@ -5,6 +5,7 @@ import java.io.*;
 import java.util.*;
 
 import com.cm55.phl.*;
+import com.cm55.phl.Command.*;
 import com.cm55.phl.PHL.*;
 
 /**
@@ -155,6 +156,27 @@ public class HTCWriter {
     write(sjis);
   }
 
+  /** コード全体を書き込む。
+   * ラベル行を先に書き、続けてラベル以外のコマンドを書く。ラベルはコードに
+   * 設定されたラベル番号、オフセットのまま書き込まれる。 */
+  public void putCode(HTCCode code) {
+    Title title = code.getTitle();
+    title.write(this);
+    endOfLine(title.cmd);
+    for (int i = 0; i < code.numCommands(); i++) {
+      Command command = code.getCommand(i);
+      if (!(command instanceof Label)) continue;
+      command.write(this);
+      endOfLine(command.cmd);
+    }
+    for (int i = 0; i < code.numCommands(); i++) {
+      Command command = code.getCommand(i);
+      if (command instanceof Label) continue;
+      command.write(this);
+      endOfLine(command.cmd);
+    }
+  }
+
   /** コマンドを指定して行を終了。
    * 行サイズとコマンドを出力した後、pending状態の行を出力 */
   public void endOfLine(Cmd cmd) {
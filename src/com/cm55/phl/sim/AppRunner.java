@@ -0,0 +1,223 @@
+package com.cm55.phl.sim;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.cm55.phl.*;
+import com.cm55.phl.gen.*;
+
+/**
+ * アプリケーション管理表に従って複数のプログラムを実行するシミュレータ
+ * <p>
+ * 管理表の優先起動のプログラムから実行を開始する。プログラムがシステムに戻ると
+ * （ラベル番号１へのジャンプ）、画面にアプリケーションの一覧を表示して入力待ちになり、
+ * 数字キーで選択されたプログラムを最初から実行する。ファイルエリアと
+ * フレームバッファは全プログラムで共有され、レジスタはプログラムの開始ごとに
+ * 初期状態になる。
+ * </p>
+ * <p>
+ * プログラムのコードはAppTableが一度だけ読み込んで保持するので、切り替えの際に
+ * ファイルを読み直すことはない。一つのAppTableを複数のAppRunnerで共有できる。
+ * </p>
+ */
+public class AppRunner extends Simulator {
+
+  /** アプリケーション管理表 */
+  protected final AppTable table;
+
+  /** 実行中のアプリケーションの番号。0から */
+  protected int current;
+
+  /** メニューで選択を待っている */
+  protected boolean inMenu;
+
+  /** 管理表の優先起動のプログラムから実行する */
+  public AppRunner(AppTable table, FileArea fileArea, FrameBuffer frameBuffer,
+      RegisterStore regStore) {
+    this(table, table.prior, fileArea, frameBuffer, regStore);
+  }
+
+  /** 管理表の指定番号のプログラムから実行する */
+  public AppRunner(AppTable table, int index, FileArea fileArea, FrameBuffer frameBuffer,
+      RegisterStore regStore) {
+    super(table.code(index), fileArea, frameBuffer, regStore);
+    this.table = table;
+    this.current = index;
+  }
+
+  @Override
+  protected Simulator create(HTCCode code, FileArea fileArea, FrameBuffer frameBuffer,
+      RegisterStore regStore) {
+    AppRunner runner = new AppRunner(table, current, fileArea, frameBuffer, regStore);
+    runner.code = code;
+    return runner;
+  }
+
+  /** 実行中のアプリケーションの番号。0から */
+  public int current() {
+    return current;
+  }
+
+  /** メニューで選択を待っているか */
+  public boolean isInMenu() {
+    return inMenu;
+  }
+
+  @Override
+  public Status step(int maxInstructions) {
+    if (inMenu) {
+      if (terminated) return status = Status.TERMINATED;
+      int index = selectApp();
+      if (index < 0) return status = Status.WAITING_INPUT;
+      inMenu = false;
+      start(index);
+    }
+    return super.step(maxInstructions);
+  }
+
+  /** メニューの入力を処理する。選択されたアプリケーションの番号を返す。
+   * 入力がなければ-1を返す */
+  protected int selectApp() {
+    while (true) {
+      int value = pollInput();
+      if (value < 0) return -1;
+      int index = value - '1';
+      if (0 <= index && index < table.size() && table.filename(index) != null) return index;
+    }
+  }
+
+  /** アプリケーションを最初から実行する */
+  protected void start(int index) {
+    current = index;
+    load(table.code(index));
+  }
+
+  /** システムに戻る。メニューを表示して入力待ちになる */
+  @Override
+  protected void returnToSystem() {
+    inMenu = true;
+    frameBuffer.clearAll();
+    for (int i = 0; i < table.size(); i++) {
+      if (table.filename(i) == null) continue;
+      frameBuffer.drawSJIS(i, 0, new SJIS((i + 1) + ":").append(table.title(i)), (byte)0);
+    }
+    suspend(Status.WAITING_INPUT);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // 管理表
+  /////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * アプリケーション管理表
+   * <p>
+   * AppControlの書き出したHT_APCTLを読み込む。各プログラムのコードは最初に
+   * 必要になった時点で読み込み、以降は同じものを返す。
+   * </p>
+   */
+  public static class AppTable {
+
+    /** プログラムのあるディレクトリ */
+    protected final File dir;
+
+    /** プログラムのファイル名。空きはnull */
+    protected final String[]filenames;
+
+    /** タイトル */
+    protected final SJIS[]titles;
+
+    /** 優先起動の番号。0から */
+    protected final int prior;
+
+    /** 読み込んだコード */
+    private final ConcurrentHashMap<Integer,HTCCode>codes =
+      new ConcurrentHashMap<Integer,HTCCode>();
+
+    /** ディレクトリのHT_APCTLを読み込む */
+    public AppTable(File dir) throws IOException {
+      this.dir = dir;
+      List<String>names = new ArrayList<String>();
+      List<SJIS>titleList = new ArrayList<SJIS>();
+      int priorNumber = 1;
+      for (SJIS line: readLines(new File(dir, AppControl.FILENAME))) {
+        if (line.length() < 2) continue;
+        String head = line.extract(0, 2).toString();
+        if (head.equals("A ")) {
+          if (line.length() <= 2) {
+            names.add(null);
+            titleList.add(null);
+            continue;
+          }
+          int titleStart = Math.min(line.length(), 2 + 14);
+          names.add(line.extract(2, titleStart - 2).toString().trim());
+          titleList.add(line.extract(titleStart).trim());
+        } else if (head.equals("B ")) {
+          try {
+            priorNumber = Integer.parseInt(line.extract(2).toString().trim());
+          } catch (NumberFormatException ex) {
+            throw new IOException("優先起動が不正です：" + line);
+          }
+        }
+      }
+      filenames = names.toArray(new String[0]);
+      titles = titleList.toArray(new SJIS[0]);
+      prior = priorNumber - 1;
+      if (prior < 0 || prior >= filenames.length || filenames[prior] == null)
+        throw new IOException("優先起動のアプリケーションがありません：" + priorNumber);
+    }
+
+    private static List<SJIS> readLines(File file) throws IOException {
+      byte[]bytes;
+      try (InputStream in = new FileInputStream(file)) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[]buffer = new byte[4096];
+        for (int n; (n = in.read(buffer)) > 0;) out.write(buffer, 0, n);
+        bytes = out.toByteArray();
+      }
+      List<SJIS>lines = new ArrayList<SJIS>();
+      int start = 0;
+      for (int i = 0; i <= bytes.length; i++) {
+        if (i < bytes.length && bytes[i] != 0xA) continue;
+        int end = i > start && bytes[i - 1] == 0xD? i - 1:i;
+        if (end > start || i < bytes.length)
+          lines.add(new SJIS(Arrays.copyOfRange(bytes, start, end)));
+        start = i + 1;
+      }
+      return lines;
+    }
+
+    /** アプリケーションの数。空きを含む */
+    public int size() {
+      return filenames.length;
+    }
+
+    /** 優先起動の番号。0から */
+    public int prior() {
+      return prior;
+    }
+
+    /** プログラムのファイル名。空きはnull */
+    public String filename(int index) {
+      return filenames[index];
+    }
+
+    /** タイトル。空きはnull */
+    public SJIS title(int index) {
+      return titles[index];
+    }
+
+    /** プログラムのコードを取得する。最初の呼び出しで読み込む */
+    public HTCCode code(int index) {
+      if (filenames[index] == null)
+        throw new SimulateException("アプリケーションがありません：" + (index + 1));
+      return codes.computeIfAbsent(index, i-> {
+        try (InputStream in = new FileInputStream(new File(dir, filenames[i]))) {
+          return new HTCCode(in);
+        } catch (IOException ex) {
+          throw new SimulateException("プログラムを読み込めません：" + filenames[i], ex);
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package com.cm55.phl.sim;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import org.junit.*;
+
+import com.cm55.phl.*;
+import com.cm55.phl.Command.*;
+import com.cm55.phl.PHL.*;
+import com.cm55.phl.gen.*;
+import com.cm55.phl.gen.Macro.*;
+import com.cm55.phl.sim.Simulator.*;
+
+public class AppRunnerTest {
+
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("apctl", "");
+    assertTrue(dir.delete() && dir.mkdir());
+    new AppControl(
+      new String[] { "A.HTC", "B.HTC" },
+      new Generator[] { generator("PROGA", 1), generator("PROGB", 2) },
+      1
+    ).write(dir);
+  }
+
+  @After
+  public void tearDown() {
+    for (File file: dir.listFiles()) file.delete();
+    dir.delete();
+  }
+
+  /** AppControlの書き出した管理表を読み込む。足りない分は空き */
+  @Test
+  public void table() throws IOException {
+    AppRunner.AppTable table = new AppRunner.AppTable(dir);
+    assertEquals(AppControl.MAX_APPS, table.size());
+    assertEquals("A.HTC", table.filename(0));
+    assertEquals("B.HTC", table.filename(1));
+    assertEquals(new SJIS("PROGA"), table.title(0));
+    assertEquals(new SJIS("PROGB"), table.title(1));
+    assertNull(table.filename(2));
+    assertNull(table.title(2));
+    assertEquals(1, table.prior());
+    assertSame(table.code(0), table.code(0));
+  }
+
+  /** 空きのコードは取得できない */
+  @Test(expected = SimulateException.class)
+  public void emptySlot() throws IOException {
+    new AppRunner.AppTable(dir).code(2);
+  }
+
+  /** 優先起動から実行し、システムに戻るとメニューで選択を待つ */
+  @Test
+  public void menu() throws IOException {
+    AppRunner runner = new AppRunner(new AppRunner.AppTable(dir), new FileArea(),
+        new FrameBuffer(16, 8), new RegisterStore());
+    assertEquals(1, runner.current());
+    assertEquals(Status.WAITING_INPUT, runner.step(1000));
+    assertTrue(runner.isInMenu());
+    assertEquals(2, (int)runner.regStore.getValue(Register.INT1));
+
+    // 空きの番号は無視される
+    runner.setCharacter('3');
+    assertEquals(Status.WAITING_INPUT, runner.step(1000));
+    assertTrue(runner.isInMenu());
+    assertEquals(1, runner.current());
+
+    runner.setCharacter('1');
+    assertEquals(Status.WAITING_INPUT, runner.step(1000));
+    assertEquals(0, runner.current());
+    assertTrue(runner.isInMenu());
+    assertEquals(1, (int)runner.regStore.getValue(Register.INT1));
+  }
+
+  /** INT1に値を入れてシステムに戻るプログラム */
+  private static Generator generator(String title, int value) {
+    return new Generator(new Title(title, "1.0").setStartScreen(StartScreen.NONE),
+        new Assign(Register.INT1, value));
+  }
+}
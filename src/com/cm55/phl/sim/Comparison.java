@@ -0,0 +1,103 @@
+package com.cm55.phl.sim;
+
+import com.cm55.phl.*;
+import com.cm55.phl.PHL.*;
+
+/**
+ * 型と比較演算子ごとの比較処理
+ * <p>
+ * JumpIfの比較を、Comparableを経由せずにプリミティブのまま行う。
+ * 比較値がレジスタで、その型が左辺と異なる場合は、左辺の型に変換して比較する。
+ * </p>
+ */
+public class Comparison {
+
+  /** 整数の比較 */
+  public interface IntTest {
+    boolean test(int left, int right);
+  }
+
+  /** 実数の比較 */
+  public interface FloatTest {
+    boolean test(float left, float right);
+  }
+
+  /** 文字列の比較 */
+  public interface SJISTest {
+    boolean test(SJIS left, SJIS right);
+  }
+
+  /** 整数の比較処理を取得する */
+  public static IntTest intTest(Comp comp) {
+    switch (comp) {
+    case EQ: return (a, b)->a == b;
+    case LT: return (a, b)->a < b;
+    case GT: return (a, b)->a > b;
+    case LE: return (a, b)->a <= b;
+    case GE: return (a, b)->a >= b;
+    case NE: return (a, b)->a != b;
+    }
+    throw new SimulateException("比較演算子が不正です：" + comp);
+  }
+
+  /** 実数の比較処理を取得する。Float.compareToと同じ順序 */
+  public static FloatTest floatTest(Comp comp) {
+    switch (comp) {
+    case EQ: return (a, b)->Float.compare(a, b) == 0;
+    case LT: return (a, b)->Float.compare(a, b) < 0;
+    case GT: return (a, b)->Float.compare(a, b) > 0;
+    case LE: return (a, b)->Float.compare(a, b) <= 0;
+    case GE: return (a, b)->Float.compare(a, b) >= 0;
+    case NE: return (a, b)->Float.compare(a, b) != 0;
+    }
+    throw new SimulateException("比較演算子が不正です：" + comp);
+  }
+
+  /** 文字列の比較処理を取得する */
+  public static SJISTest sjisTest(Comp comp) {
+    switch (comp) {
+    case EQ: return (a, b)->a.compareTo(b) == 0;
+    case LT: return (a, b)->a.compareTo(b) < 0;
+    case GT: return (a, b)->a.compareTo(b) > 0;
+    case LE: return (a, b)->a.compareTo(b) <= 0;
+    case GE: return (a, b)->a.compareTo(b) >= 0;
+    case NE: return (a, b)->a.compareTo(b) != 0;
+    }
+    throw new SimulateException("比較演算子が不正です：" + comp);
+  }
+
+  /** 比較値のレジスタを整数として取得する */
+  public static int getInt(RegisterStore regStore, Register register) {
+    if (register.type() == Type.INTEGER) return regStore.getInt(register);
+    return Type.INTEGER.<Integer>convert(regStore.getValue(register));
+  }
+
+  /** 比較値のレジスタを実数として取得する */
+  public static float getFloat(RegisterStore regStore, Register register) {
+    if (register.type() == Type.FLOAT) return regStore.getFloat(register);
+    return Type.FLOAT.<Float>convert(regStore.getValue(register));
+  }
+
+  /** 比較値のレジスタを文字列として取得する */
+  public static SJIS getSJIS(RegisterStore regStore, Register register) {
+    if (register.type() == Type.STRING) return regStore.getSJIS(register);
+    return Type.STRING.convert(regStore.getValue(register));
+  }
+
+  /** JumpIfの条件を評価する */
+  public static boolean test(RegisterStore regStore, Register left, Comp comp,
+      Object operand) {
+    Register right = operand instanceof Register? (Register)operand:null;
+    switch (left.type()) {
+    case INTEGER:
+      return intTest(comp).test(regStore.getInt(left),
+          right != null? getInt(regStore, right):(Integer)operand);
+    case FLOAT:
+      return floatTest(comp).test(regStore.getFloat(left),
+          right != null? getFloat(regStore, right):(Float)operand);
+    default:
+      return sjisTest(comp).test(regStore.getSJIS(left),
+          right != null? getSJIS(regStore, right):(SJIS)operand);
+    }
+  }
+}
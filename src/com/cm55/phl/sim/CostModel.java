@@ -0,0 +1,139 @@
+package com.cm55.phl.sim;
+
+import java.util.*;
+
+import com.cm55.phl.*;
+import com.cm55.phl.Command.*;
+import com.cm55.phl.PHL.*;
+import com.cm55.phl.sim.FileArea.*;
+
+/**
+ * 実機での実行時間のコストモデル
+ * <p>
+ * コマンド種類ごとに、一回あたりの固定時間、対象ファイルのレコード数に比例する時間、
+ * ファイルサイズ(KB)に比例する時間を持ち、その和を実機での予想実行時間(μs)とする。
+ * マスタ検索のレコード数は、二分検索の場合は比較回数（レコード数の対数）となる。
+ * 対象ファイルは実行後の状態で評価するが、ファイル削除は実行後にはファイルが
+ * ないので、実行前にpreCost()でサイズに比例する時間を求めておく。
+ * forProfile()の値は機種ごとの目安であり、実機で計測した値をsetCost()で
+ * 設定して校正すること。
+ * </p>
+ */
+public class CostModel {
+
+  /** 一回あたりの時間(μs)。Cmd.ordinal()でインデックスされる */
+  protected final long[]base = new long[Cmd.values().length];
+
+  /** レコードあたりの時間(μs) */
+  protected final long[]perRecord = new long[Cmd.values().length];
+
+  /** ファイルサイズ1KBあたりの時間(μs) */
+  protected final long[]perKByte = new long[Cmd.values().length];
+
+  /** 全コマンドの一回あたりの時間を指定して作成する */
+  public CostModel(long defaultBase) {
+    Arrays.fill(base, defaultBase);
+  }
+
+  /** 複製を作成する */
+  public CostModel copy() {
+    CostModel model = new CostModel(0);
+    System.arraycopy(base, 0, model.base, 0, base.length);
+    System.arraycopy(perRecord, 0, model.perRecord, 0, perRecord.length);
+    System.arraycopy(perKByte, 0, model.perKByte, 0, perKByte.length);
+    return model;
+  }
+
+  /** コマンド種類のコストを設定する */
+  public CostModel setCost(Cmd cmd, long base, long perRecord, long perKByte) {
+    this.base[cmd.ordinal()] = base;
+    this.perRecord[cmd.ordinal()] = perRecord;
+    this.perKByte[cmd.ordinal()] = perKByte;
+    return this;
+  }
+
+  /** プロファイルに応じた目安の値で作成する */
+  public static CostModel forProfile(Profile profile) {
+    // PHL-1600を基準に、PHL-2600はおよそ2.5倍速い
+    int div = profile.machine() == Machine.PHL2600? 5:2;
+    // 16ドットフォントは描画量が多い
+    int display = profile.fontSize() == FontSize.SIZE16? 2600:2000;
+    CostModel model = new CostModel(400 / div);
+    model.setCost(Cmd.Title, 0, 0, 0);
+    model.setCost(Cmd.Label, 0, 0, 0);
+    model.setCost(Cmd.DisplayString, display * 2 / div, 0, 0);
+    model.setCost(Cmd.DisplayRegister, display * 2 / div, 0, 0);
+    model.setCost(Cmd.DisplayClear, 10000 / div, 0, 0);
+    model.setCost(Cmd.DisplayPartClear, 6000 / div, 0, 0);
+    model.setCost(Cmd.RecordRead, 6000 / div, 0, 100 / div);
+    model.setCost(Cmd.RecordWrite, 12000 / div, 0, 100 / div);
+    model.setCost(Cmd.RecordCount, 4000 / div, 0, 40 / div);
+    model.setCost(Cmd.FileExists, 4000 / div, 0, 0);
+    model.setCost(Cmd.FileDelete, 20000 / div, 0, 200 / div);
+    model.setCost(Cmd.MasterSearch, 10000 / div, 1600 / div, 0);
+    // 通信は9600bps程度
+    model.setCost(Cmd.CommUpload, 200000 / div, 0, 1000000);
+    model.setCost(Cmd.CommDownload, 200000 / div, 0, 1000000);
+    return model;
+  }
+
+  /** 実行前に評価する予想時間(μs)。ファイル削除の、削除されるファイルのサイズに比例する時間 */
+  public long preCost(Simulator sim, Command command) {
+    if (command.cmd != Cmd.FileDelete) return 0;
+    long perKByte = this.perKByte[Cmd.FileDelete.ordinal()];
+    if (perKByte == 0) return 0;
+    MemoryFile file = getFile(sim, ((FileDelete)command).filename);
+    return file == null? 0:perKByte * file.fileSize() / 1024;
+  }
+
+  /** コマンドを一回実行する予想時間(μs)。対象ファイルは実行後の状態で評価する。
+   * ファイル削除のサイズに比例する時間は含まない */
+  public long cost(Simulator sim, Command command) {
+    int index = command.cmd.ordinal();
+    long result = base[index];
+    if (perRecord[index] == 0 && perKByte[index] == 0) return result;
+
+    Filename filename = null;
+    int recordLen = 0;
+    switch (command.cmd) {
+    case RecordRead:
+      filename = ((RecordRead)command).filename;
+      recordLen = ((RecordRead)command).recordLen;
+      break;
+    case RecordWrite:
+      filename = ((RecordWrite)command).filename;
+      recordLen = ((RecordWrite)command).recordLen;
+      break;
+    case RecordCount:
+      filename = ((RecordCount)command).filename;
+      recordLen = ((RecordCount)command).recordLen;
+      break;
+    case MasterSearch:
+      filename = ((MasterSearch)command).filename;
+      recordLen = ((MasterSearch)command).recordLen;
+      break;
+    case FileExists: filename = ((FileExists)command).filename; break;
+    case CommUpload:
+    case CommDownload: filename = ((UpDownload)command).filename; break;
+    default: return result;
+    }
+
+    MemoryFile file = getFile(sim, filename);
+    if (file == null) return result;
+    if (recordLen > 0) {
+      int records = file.recordCount(recordLen);
+      if (command instanceof MasterSearch &&
+          ((MasterSearch)command).method != MasterSearch.METHOD_LINEAR)
+        records = 32 - Integer.numberOfLeadingZeros(records);
+      result += perRecord[index] * records;
+    }
+    result += perKByte[index] * file.fileSize() / 1024;
+    return result;
+  }
+
+  /** ファイル名のファイルを取得する。ない場合はnull */
+  private static MemoryFile getFile(Simulator sim, Filename filename) {
+    SJIS name = filename == null? null:sim.getFilenameSJIS(filename);
+    return name == null? null:sim.fileArea.getFile(name);
+  }
+}
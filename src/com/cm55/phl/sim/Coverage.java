@@ -0,0 +1,234 @@
+package com.cm55.phl.sim;
+
+import java.io.*;
+
+import com.cm55.phl.*;
+import com.cm55.phl.Command.*;
+import com.cm55.phl.sim.LinkedCode.*;
+
+/**
+ * コマンドのカバレッジ
+ * <p>
+ * コードごとに、コマンドインデックスでインデックスされるビット列を三つ持つ。
+ * 実行されたコマンド、分岐したJumpIf、分岐しなかったJumpIfである。分岐先が
+ * 次のコマンドであるJumpIfは、分岐したものとして扱う。システムに戻るJumpIf（ラベル番号１）は
+ * 条件が成立した場合に分岐したものとする。Simulator.setCoverage()で
+ * 設定すると、プロファイラと同様にリンク済みコードの全ノードが包まれる。
+ * </p>
+ * <p>
+ * 複数の実行の結果はmerge()でビット列の論理和をとって集計する。実行ごとに別の
+ * Coverageを使い、終了後にマージすること。ファイルに書き出して、別プロセスの
+ * 結果をマージすることもできる。
+ * </p>
+ */
+public class Coverage {
+
+  /** ファイルの識別 */
+  private static final int MAGIC = 0x50484c43; // "PHLC"
+
+  /** システムに戻るJumpIfの分岐先 */
+  static final int SYSTEM = -1;
+
+  /** 対象コード */
+  protected final HTCCode code;
+
+  /** 実行されたコマンド */
+  protected final long[]executed;
+
+  /** 分岐したJumpIf */
+  protected final long[]taken;
+
+  /** 分岐しなかったJumpIf */
+  protected final long[]notTaken;
+
+  /** 対象コードを指定して作成する */
+  public Coverage(HTCCode code) {
+    this.code = code;
+    int words = (code.numCommands() + 63) >>> 6;
+    executed = new long[words];
+    taken = new long[words];
+    notTaken = new long[words];
+  }
+
+  /** リンク済みコードのノードを記録ノードで包む */
+  void install(LinkedCode linked) {
+    if (linked.code != code) throw new SimulateException("カバレッジのコードが異なります");
+    Node[]nodes = linked.nodes;
+    for (int i = 0; i < nodes.length; i++) {
+      Command command = nodes[i].command;
+      if (command instanceof JumpIf) {
+        JumpIf jumpIf = (JumpIf)command;
+        nodes[i] = new BranchNode(nodes[i],
+            jumpIf.hasTargetLabel()? jumpIf.getTargetLabel().getIndex():SYSTEM);
+      } else
+        nodes[i] = new CoverNode(nodes[i]);
+    }
+  }
+
+  /** 記録ノード */
+  class CoverNode extends WrapperNode {
+    CoverNode(Node original) {
+      super(original);
+    }
+    @Override
+    public int execute(Simulator sim, int pc) {
+      int next = original.execute(sim, pc);
+      executed[pc >>> 6] |= 1L << pc;
+      return next;
+    }
+  }
+
+  /** JumpIfの記録ノード */
+  class BranchNode extends WrapperNode {
+    final int target;
+    BranchNode(Node original, int target) {
+      super(original);
+      this.target = target;
+    }
+    @Override
+    public int execute(Simulator sim, int pc) {
+      // システムに戻る場合の次の位置は実行環境によるので、実行前に条件を評価する
+      boolean toSystem = target == SYSTEM && test(sim, (JumpIf)command);
+      int next = original.execute(sim, pc);
+      executed[pc >>> 6] |= 1L << pc;
+      if (next == target || toSystem) taken[pc >>> 6] |= 1L << pc;
+      else notTaken[pc >>> 6] |= 1L << pc;
+      return next;
+    }
+  }
+
+  /** JumpIfの条件が成立するか */
+  private static boolean test(Simulator sim, JumpIf command) {
+    return Comparison.test(sim.regStore, command.register, command.comp, command.getOperand());
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // 集計
+  /////////////////////////////////////////////////////////////////////////////
+
+  /** 他の結果を加える。同じコードのものでなければならない */
+  public synchronized void merge(Coverage other) {
+    if (other.code.numCommands() != code.numCommands())
+      throw new SimulateException("カバレッジのコードが異なります");
+    for (int i = 0; i < executed.length; i++) {
+      executed[i] |= other.executed[i];
+      taken[i] |= other.taken[i];
+      notTaken[i] |= other.notTaken[i];
+    }
+  }
+
+  /** 結果をクリアする */
+  public void clear() {
+    for (int i = 0; i < executed.length; i++) {
+      executed[i] = 0;
+      taken[i] = 0;
+      notTaken[i] = 0;
+    }
+  }
+
+  private static boolean get(long[]bits, int index) {
+    return (bits[index >>> 6] & (1L << index)) != 0;
+  }
+
+  /** コマンドが実行されたか */
+  public boolean executed(int index) {
+    return get(executed, index);
+  }
+
+  /** JumpIfが分岐したか */
+  public boolean taken(int index) {
+    return get(taken, index);
+  }
+
+  /** JumpIfが分岐しなかったか */
+  public boolean notTaken(int index) {
+    return get(notTaken, index);
+  }
+
+  /** 実行されたコマンド数 */
+  public int executedCount() {
+    return bitCount(executed);
+  }
+
+  /** JumpIfの分岐方向のうち、実行されたものの数。JumpIf一つにつき二方向 */
+  public int branchCount() {
+    return bitCount(taken) + bitCount(notTaken);
+  }
+
+  /** JumpIfの数 */
+  public int jumpIfCount() {
+    int count = 0;
+    for (int i = 0; i < code.numCommands(); i++)
+      if (code.getCommand(i) instanceof JumpIf) count++;
+    return count;
+  }
+
+  private static int bitCount(long[]bits) {
+    int count = 0;
+    for (long word: bits) count += Long.bitCount(word);
+    return count;
+  }
+
+  /**
+   * 逆アセンブルにカバレッジを付けて出力する。各行の先頭は、実行されていなければ
+   * 「#####」、JumpIfは分岐した場合「T」、分岐しなかった場合「F」、
+   * 実行されなかった方向は「-」となる
+   */
+  public void report(PrintStream out) {
+    int jumpIfs = jumpIfCount();
+    out.println(String.format("コマンド:%d/%d 分岐:%d/%d",
+        executedCount(), code.numCommands(), branchCount(), jumpIfs * 2));
+    for (int i = 0; i < code.numCommands(); i++) {
+      Command command = code.getCommand(i);
+      String mark;
+      if (!executed(i)) mark = "#####";
+      else if (command instanceof JumpIf)
+        mark = "  " + (taken(i)? "T":"-") + (notTaken(i)? "F":"-") + " ";
+      else mark = "     ";
+      out.println(String.format("%s %5d  %s", mark, i, command));
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // 入出力
+  /////////////////////////////////////////////////////////////////////////////
+
+  /** 結果をバイナリで書き出す */
+  public void writeTo(OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+    data.writeInt(MAGIC);
+    data.writeInt(code.numCommands());
+    for (long[]bits: new long[][] { executed, taken, notTaken })
+      for (long word: bits) data.writeLong(word);
+    data.flush();
+  }
+
+  /** バイナリを読み込み、結果に加える */
+  public synchronized void read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+    if (data.readInt() != MAGIC) throw new IOException("カバレッジファイルではありません");
+    if (data.readInt() != code.numCommands())
+      throw new IOException("カバレッジのコードが異なります");
+    for (long[]bits: new long[][] { executed, taken, notTaken })
+      for (int i = 0; i < bits.length; i++) bits[i] |= data.readLong();
+  }
+
+  /** HTCファイルとカバレッジファイルを指定して、マージした結果を出力する */
+  public static void main(String[]args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("usage: Coverage <htc file> <coverage file>...");
+      return;
+    }
+    HTCCode code;
+    try (InputStream in = new FileInputStream(args[0])) {
+      code = new HTCCode(in);
+    }
+    Coverage coverage = new Coverage(code);
+    for (int i = 1; i < args.length; i++) {
+      try (InputStream in = new FileInputStream(args[i])) {
+        coverage.read(in);
+      }
+    }
+    coverage.report(System.out);
+  }
+}
@@ -0,0 +1,94 @@
+package com.cm55.phl.sim;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import org.junit.*;
+
+import com.cm55.phl.*;
+import com.cm55.phl.Command.*;
+import com.cm55.phl.PHL.*;
+import com.cm55.phl.gen.*;
+import com.cm55.phl.gen.Macro.*;
+import com.cm55.phl.sim.Simulator.*;
+
+public class CoverageTest {
+
+  /** 分岐した方向と分岐しなかった方向が記録され、マージされる */
+  @Test
+  public void branch() throws IOException {
+    HTCCode code = code(false);
+    int index = jumpIf(code);
+    assertTrue(code.getCommand(index) instanceof JumpIf);
+
+    Coverage one = run(code, '1');
+    assertTrue(one.executed(index));
+    assertFalse(one.taken(index));
+    assertTrue(one.notTaken(index));
+
+    Coverage two = run(code, '2');
+    assertTrue(two.taken(index));
+    assertFalse(two.notTaken(index));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    two.writeTo(out);
+    one.read(new ByteArrayInputStream(out.toByteArray()));
+    assertTrue(one.taken(index) && one.notTaken(index));
+    assertEquals(2, one.branchCount());
+  }
+
+  /** システムに戻るJumpIfは、条件が成立した場合に分岐したものとする */
+  @Test
+  public void systemReturn() throws IOException {
+    HTCCode code = code(true);
+    int index = jumpIf(code);
+    assertFalse(((JumpIf)code.getCommand(index)).hasTargetLabel());
+
+    Coverage one = run(code, '1');
+    assertFalse(one.taken(index));
+    assertTrue(one.notTaken(index));
+
+    Coverage two = run(code, '2');
+    assertTrue(two.executed(index));
+    assertTrue(two.taken(index));
+    assertFalse(two.notTaken(index));
+
+    two.merge(one);
+    assertEquals(2, two.branchCount());
+  }
+
+  /** キーを一つ入力して終了まで実行する */
+  private static Coverage run(HTCCode code, int key) {
+    Simulator sim = new Simulator(code, new FileArea(), new FrameBuffer(16, 8), new RegisterStore());
+    Coverage coverage = new Coverage(code);
+    sim.setCoverage(coverage);
+    sim.setCharacter(key);
+    assertEquals(Status.TERMINATED, sim.step(1000));
+    return coverage;
+  }
+
+  /** 最初のJumpIfのインデックス */
+  private static int jumpIf(HTCCode code) {
+    for (int i = 0; i < code.numCommands(); i++)
+      if (code.getCommand(i) instanceof JumpIf) return i;
+    fail();
+    return -1;
+  }
+
+  /** 入力が'1'でなければelseに分岐するプログラム。
+   * toSystemがtrueの場合は、その分岐先をシステムに戻るラベル番号１に変える */
+  private static HTCCode code(boolean toSystem) throws IOException {
+    Title title = new Title("TEST", "1.0").setStartScreen(StartScreen.NONE);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new Generator(title, new Compound(
+      new NoEchoInput(Register.INT1),
+      new If(Register.INT1, Comp.EQ, (int)'1',
+        new Assign(Register.INT2, 1),
+        new Assign(Register.INT2, 2))
+    )).outputHTC(out);
+    String text = new String(out.toByteArray(), "ISO-8859-1");
+    if (toSystem) text = text.replaceFirst("(J\\d\\d)\\d{4}(<>INT1)", "$10001$2");
+    return new HTCCode(new ByteArrayInputStream(text.getBytes("ISO-8859-1")));
+  }
+}
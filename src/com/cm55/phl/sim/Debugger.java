@@ -0,0 +1,277 @@
+package com.cm55.phl.sim;
+
+import java.util.*;
+import java.util.function.*;
+
+import com.cm55.phl.*;
+import com.cm55.phl.Command.*;
+import com.cm55.phl.PHL.*;
+import com.cm55.phl.sim.LinkedCode.*;
+import com.cm55.phl.sim.Simulator.*;
+
+/**
+ * デバッガ
+ * <p>
+ * コマンドインデックスあるいはラベルへのブレークポイントと、レジスタへの書き込みの
+ * ウォッチポイントを設定する。いずれも条件を指定できる。停止するとstep()は
+ * Status.BREAKを返し、プログラムカウンタは次に実行するコマンドを指している。
+ * 再度step()を呼び出すと、そのコマンドから実行を続ける。
+ * </p>
+ * <p>
+ * ブレークポイントもウォッチポイントもない場合、リンク済みコードは通常どおりであり、
+ * レジスタストアにリスナーも登録されないので、実行には一切影響しない。
+ * 設定されると、ブレークポイントのあるコマンドのノードだけが検査ノードで包まれる。
+ * ウォッチポイントがある場合は、書き込んだコマンドの次で停止するために全ノードが
+ * 包まれる。いずれの場合も、融合命令とブロックコンパイルは使用されない。
+ * リンク済みコードで実行する場合のみ有効である。
+ * </p>
+ */
+public class Debugger implements RegisterStore.Listener {
+
+  /** 対象シミュレータ */
+  protected final Simulator sim;
+
+  /** ブレークポイント。コマンドインデックスでインデックスされる */
+  protected Breakpoint[]breakpoints;
+
+  /** ブレークポイント数 */
+  protected int breakpointCount;
+
+  /** ウォッチポイント */
+  protected final EnumMap<Register,Watchpoint>watchpoints =
+    new EnumMap<Register,Watchpoint>(Register.class);
+
+  /** 条件を満たした書き込みがあり、次のコマンドの前で停止する */
+  private Watchpoint pendingWatch;
+
+  /** 停止後の再開時に、ブレークせずに実行するコマンドインデックス */
+  private int skipIndex = -1;
+
+  /** 最後に停止した原因。BreakpointあるいはWatchpoint */
+  private volatile Object lastHit;
+
+  /** 停止中にresume()が呼び出された */
+  private boolean released;
+
+  Debugger(Simulator sim) {
+    this.sim = sim;
+    breakpoints = new Breakpoint[sim.code.numCommands()];
+  }
+
+  /** 全てのブレークポイントとウォッチポイントを削除する。コードが置き換えられた場合に使用する */
+  void reset() {
+    breakpoints = new Breakpoint[sim.code.numCommands()];
+    breakpointCount = 0;
+    if (!watchpoints.isEmpty()) sim.regStore.removeListener(this);
+    watchpoints.clear();
+    pendingWatch = null;
+    skipIndex = -1;
+  }
+
+  /** ブレークポイントあるいはウォッチポイントがあるか */
+  public boolean isActive() {
+    return breakpointCount > 0 || !watchpoints.isEmpty();
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // ブレークポイント
+  /////////////////////////////////////////////////////////////////////////////
+
+  /** ブレークポイント */
+  public static class Breakpoint {
+
+    /** コマンドインデックス */
+    public final int index;
+
+    /** 条件。nullの場合は常に停止する */
+    public final Predicate<Simulator>condition;
+
+    /** 停止した回数 */
+    public int hitCount;
+
+    Breakpoint(int index, Predicate<Simulator>condition) {
+      this.index = index;
+      this.condition = condition;
+    }
+
+    @Override
+    public String toString() {
+      return "Breakpoint pc:" + index + (condition == null? "":" (条件付き)");
+    }
+  }
+
+  /** コマンドインデックスにブレークポイントを設定する */
+  public Breakpoint addBreakpoint(int index) {
+    return addBreakpoint(index, null);
+  }
+
+  /** コマンドインデックスに条件付きのブレークポイントを設定する。
+   * 同じインデックスの既存のものは置き換えられる */
+  public Breakpoint addBreakpoint(int index, Predicate<Simulator>condition) {
+    if (index < 0 || index >= breakpoints.length)
+      throw new SimulateException("コマンドインデックスが不正です：" + index);
+    Breakpoint breakpoint = new Breakpoint(index, condition);
+    if (breakpoints[index] == null) breakpointCount++;
+    breakpoints[index] = breakpoint;
+    sim.relink();
+    return breakpoint;
+  }
+
+  /** ラベルに条件付きのブレークポイントを設定する */
+  public Breakpoint addLabelBreakpoint(int labelNumber, Predicate<Simulator>condition) {
+    for (int i = 0; i < breakpoints.length; i++) {
+      Command command = sim.code.getCommand(i);
+      if (command instanceof Label && ((Label)command).getNumber() == labelNumber)
+        return addBreakpoint(i, condition);
+    }
+    throw new SimulateException("ラベルがありません：" + labelNumber);
+  }
+
+  /** ブレークポイントを削除する */
+  public void removeBreakpoint(int index) {
+    if (breakpoints[index] == null) return;
+    breakpoints[index] = null;
+    breakpointCount--;
+    sim.relink();
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // ウォッチポイント
+  /////////////////////////////////////////////////////////////////////////////
+
+  /** ウォッチポイント */
+  public static class Watchpoint {
+
+    /** 対象レジスタ */
+    public final Register register;
+
+    /** 条件。書き込み後に評価される。nullの場合は常に停止する */
+    public final Predicate<Simulator>condition;
+
+    /** 停止した回数 */
+    public int hitCount;
+
+    Watchpoint(Register register, Predicate<Simulator>condition) {
+      this.register = register;
+      this.condition = condition;
+    }
+
+    @Override
+    public String toString() {
+      return "Watchpoint " + register + (condition == null? "":" (条件付き)");
+    }
+  }
+
+  /** レジスタへの書き込みで停止するウォッチポイントを設定する。
+   * 同じレジスタの既存のものは置き換えられる */
+  public Watchpoint addWatchpoint(Register register, Predicate<Simulator>condition) {
+    Watchpoint watchpoint = new Watchpoint(register, condition);
+    if (watchpoints.isEmpty()) sim.regStore.addListener(this);
+    watchpoints.put(register, watchpoint);
+    sim.relink();
+    return watchpoint;
+  }
+
+  /** ウォッチポイントを削除する */
+  public void removeWatchpoint(Register register) {
+    if (watchpoints.remove(register) == null) return;
+    if (watchpoints.isEmpty()) {
+      sim.regStore.removeListener(this);
+      pendingWatch = null;
+    }
+    sim.relink();
+  }
+
+  @Override
+  public void changed(Register register) {
+    Watchpoint watchpoint = watchpoints.get(register);
+    if (watchpoint == null) return;
+    if (watchpoint.condition == null || watchpoint.condition.test(sim))
+      pendingWatch = watchpoint;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // 実行
+  /////////////////////////////////////////////////////////////////////////////
+
+  /** 最後に停止した原因。BreakpointあるいはWatchpoint。停止していなければnull */
+  public Object getLastHit() {
+    return lastHit;
+  }
+
+  /** リンク済みコードのノードを検査ノードで包む */
+  void install(LinkedCode linked) {
+    boolean all = !watchpoints.isEmpty();
+    Node[]nodes = linked.nodes;
+    for (int i = 0; i < nodes.length; i++) {
+      if (all || breakpoints[i] != null) nodes[i] = new BreakNode(nodes[i]);
+    }
+  }
+
+  /** 検査ノード */
+  class BreakNode extends WrapperNode {
+    BreakNode(Node original) {
+      super(original);
+    }
+    @Override
+    public int execute(Simulator sim, int pc) {
+      if (!sim.resuming && shouldBreak(pc)) {
+        sim.suspend(Status.BREAK);
+        return pc;
+      }
+      return original.execute(sim, pc);
+    }
+  }
+
+  /** 指定コマンドの実行前に停止するか */
+  protected boolean shouldBreak(int index) {
+    if (skipIndex == index) {
+      skipIndex = -1;
+      return false;
+    }
+    Object hit = null;
+    if (pendingWatch != null) {
+      hit = pendingWatch;
+      pendingWatch.hitCount++;
+      pendingWatch = null;
+    } else {
+      Breakpoint breakpoint = breakpoints[index];
+      if (breakpoint == null) return false;
+      if (breakpoint.condition != null && !breakpoint.condition.test(sim)) return false;
+      breakpoint.hitCount++;
+      hit = breakpoint;
+    }
+    lastHit = hit;
+    skipIndex = index;
+    synchronized (this) {
+      released = false;
+    }
+    return true;
+  }
+
+  /** run()あるいはSessionSchedulerで停止中のシミュレータを再開する。
+   * step()を直接呼び出している場合は不要 */
+  public synchronized void resume() {
+    released = true;
+    notifyAll();
+    sim.wake();
+  }
+
+  /** 停止後にresume()が呼び出されていればtrueを返し、その記録を消す */
+  synchronized boolean consumeResume() {
+    boolean result = released;
+    released = false;
+    return result;
+  }
+
+  /** resume()が呼び出されるまで待つ */
+  synchronized void awaitResume() {
+    try {
+      while (!released && !sim.isTerminated()) wait();
+    } catch (InterruptedException ex) {
+      // terminate()による
+    } finally {
+      released = false;
+    }
+  }
+}
@@ -0,0 +1,329 @@
+package com.cm55.phl.sim;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.cm55.phl.*;
+import com.cm55.phl.Command.*;
+import com.cm55.phl.PHL.*;
+import com.cm55.phl.sim.FileArea.*;
+import com.cm55.phl.sim.Simulator.*;
+
+/**
+ * 入力空間の探索
+ * <p>
+ * シミュレータを入力待ちになるまで実行し、その時点の状態から、受け付けられる
+ * キーのそれぞれについてfork()した分岐を実行する。これを指定の深さまで繰り返し、
+ * 例外の発生、入力待ちにならない無限ループ、許可されていないファイルへの書き込みを
+ * 検出して、そこに至るキー入力列を報告する。
+ * </p>
+ * <p>
+ * 行入力では、コマンドの特殊キーと数字、ENT、CLR、BSで分岐する。エコー無し入力では
+ * すべてのキーで分岐する。プログラムカウンタ、レジスタ、画面が同じ状態は一度だけ
+ * 展開する。分岐はForkJoinPoolで並列に実行される。時計は仮想時間に置き換えられる。
+ * </p>
+ */
+public class Explorer {
+
+  /** 検出内容の種類 */
+  public enum Kind {
+    CRASH("実行エラー"),
+    LOOP("入力待ちにならない"),
+    WRITE("許可されていないファイル操作");
+
+    public final String description;
+    private Kind(String description) {
+      this.description = description;
+    }
+  }
+
+  /** 行入力で常に分岐するキー */
+  private static final EnumSet<Key>LINE_KEYS = EnumSet.of(
+      Key.Zero, Key.One, Key.Two, Key.Three, Key.Four, Key.Five, Key.Six,
+      Key.Seven, Key.Eight, Key.Nine, Key.ENT, Key.CLR, Key.BS);
+
+  /** 探索する最大のキー入力数 */
+  protected int maxDepth = 6;
+
+  /** 展開する最大の状態数 */
+  protected int maxStates = 100000;
+
+  /** 入力待ちにならずに実行できるコマンド数の上限 */
+  protected long maxInstructions = 1000000L;
+
+  /** 書き込み、作成、削除してよいファイル。nullの場合は検査しない */
+  protected Set<SJIS>writableFiles;
+
+  /** 並列実行に用いるプール */
+  protected ForkJoinPool pool = ForkJoinPool.commonPool();
+
+  /** 探索する最大のキー入力数を設定する */
+  public void setMaxDepth(int value) {
+    maxDepth = value;
+  }
+
+  /** 展開する最大の状態数を設定する */
+  public void setMaxStates(int value) {
+    maxStates = value;
+  }
+
+  /** 入力待ちにならずに実行できるコマンド数の上限を設定する */
+  public void setMaxInstructions(long value) {
+    maxInstructions = value;
+  }
+
+  /** 書き込んでよいファイルを設定する。nullの場合はファイル操作を検査しない */
+  public void setWritableFiles(Collection<SJIS>files) {
+    writableFiles = files == null? null:new HashSet<SJIS>(files);
+  }
+
+  /** 並列実行に用いるプールを設定する */
+  public void setPool(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * 指定シミュレータの現在の状態から探索する。
+   * 指定シミュレータ自体は実行されず、状態も変更されない。
+   */
+  public Report explore(Simulator root) {
+    Report report = new Report();
+    Simulator sim = root.fork();
+    sim.setClock(new SimClock.Virtual(root.getClock().millis()));
+    long start = System.nanoTime();
+    pool.invoke(new Branch(report, sim, new int[0], null));
+    report.nanos = System.nanoTime() - start;
+    return report;
+  }
+
+  /** 分岐の実行と展開 */
+  @SuppressWarnings("serial")
+  protected class Branch extends RecursiveAction {
+
+    final Report report;
+
+    /** 実行するシミュレータ。入力は設定済み */
+    final Simulator sim;
+
+    /** ここまでのキー入力 */
+    final int[]path;
+
+    /** 分岐元のファイル名。ファイルの削除の検出用 */
+    final Set<SJIS>parentFiles;
+
+    Branch(Report report, Simulator sim, int[]path, Set<SJIS>parentFiles) {
+      this.report = report;
+      this.sim = sim;
+      this.path = path;
+      this.parentFiles = parentFiles;
+    }
+
+    @Override
+    protected void compute() {
+
+      // 入力待ちになるまで実行
+      int generation = sim.fileArea.generation();
+      long count = sim.getInstructionCount();
+      try {
+        if (!runUntilInput()) return;
+      } catch (RuntimeException ex) {
+        report.add(new Finding(Kind.CRASH, path, sim.getPc(), String.valueOf(ex)));
+        return;
+      }
+      report.instructions.add(sim.getInstructionCount() - count);
+      if (!checkFiles(generation)) return;
+      if (sim.isTerminated()) return;
+
+      // 同じ状態は展開しない
+      int pc = sim.getPc();
+      report.inputPoints.add(pc);
+      if (!report.states.add(stateHash(sim))) return;
+      if (report.states.size() > maxStates) {
+        report.truncated = true;
+        return;
+      }
+      if (path.length >= maxDepth) return;
+
+      // キーごとに分岐
+      Snapshot snapshot = sim.snapshot();
+      Set<SJIS>files = fileNames(sim.fileArea);
+      List<Branch>branches = new ArrayList<Branch>();
+      for (Key key: keysAt(sim)) {
+        Simulator child = snapshot.fork();
+        child.setCharacter(key.code());
+        int[]childPath = Arrays.copyOf(path, path.length + 1);
+        childPath[path.length] = key.code();
+        branches.add(new Branch(report, child, childPath, files));
+      }
+      invokeAll(branches);
+    }
+
+    /** 入力待ちになるまで実行する。無限ループの場合はfalseを返す */
+    private boolean runUntilInput() {
+      long limit = sim.getInstructionCount() + maxInstructions;
+      while (true) {
+        switch (sim.step(10000)) {
+        case WAITING_INPUT:
+          if (!sim.hasInput()) return true;
+          break;
+        case WAITING_TIMER:
+          sim.getClock().advanceTo(sim.getWakeupTime());
+          break;
+        case TERMINATED:
+          return true;
+        default:
+          break;
+        }
+        if (sim.getInstructionCount() > limit) {
+          report.add(new Finding(Kind.LOOP, path, sim.getPc(),
+              maxInstructions + "コマンド"));
+          return false;
+        }
+      }
+    }
+
+    /** 許可されていないファイル操作を検査する。あればfalseを返す */
+    private boolean checkFiles(int generation) {
+      if (writableFiles == null) return true;
+      List<SJIS>names = new ArrayList<SJIS>(sim.fileArea.writtenFiles());
+      if (parentFiles != null && generation != sim.fileArea.generation()) {
+        Set<SJIS>deleted = new HashSet<SJIS>(parentFiles);
+        deleted.removeAll(fileNames(sim.fileArea));
+        names.addAll(deleted);
+      }
+      names.removeAll(writableFiles);
+      if (names.isEmpty()) return true;
+      report.add(new Finding(Kind.WRITE, path, sim.getPc(), names.toString()));
+      return false;
+    }
+  }
+
+  /** 入力待ちのコマンドで受け付けられるキー */
+  protected Collection<Key> keysAt(Simulator sim) {
+    if (sim.titleDone) {
+      Command command = sim.code.getCommand(sim.getPc());
+      if (command instanceof LineInput) {
+        EnumSet<Key>keys = EnumSet.copyOf(LINE_KEYS);
+        keys.addAll(((LineInput)command).specialKeys);
+        return keys;
+      }
+    }
+    return EnumSet.allOf(Key.class);
+  }
+
+  /** プログラムカウンタ、入力途中の状態、レジスタ、画面のハッシュ値 */
+  protected static long stateHash(Simulator sim) {
+    long h = sim.getPc();
+    h = h * 31 + (sim.titleDone? 1:0);
+    h = h * 31 + (sim.lineBuffer == null? 0:sim.lineBuffer.hashCode());
+    h = h * 0x9E3779B97F4A7C15L + sim.regStore.contentHash();
+    h = h * 0x9E3779B97F4A7C15L + sim.frameBuffer.contentHash();
+    return h ^ (h >>> 29);
+  }
+
+  private static Set<SJIS> fileNames(FileArea fileArea) {
+    Set<SJIS>names = new HashSet<SJIS>();
+    for (MemoryFile file: fileArea.fileList) names.add(file.filename);
+    return names;
+  }
+
+  /** キー入力列の文字列表現 */
+  public static String pathString(int[]path) {
+    StringBuilder s = new StringBuilder();
+    for (int code: path) {
+      if (s.length() > 0) s.append(' ');
+      Key key = Key.findKey(code);
+      s.append(key == null? String.valueOf(code):key.name());
+    }
+    return s.toString();
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // 結果
+  /////////////////////////////////////////////////////////////////////////////
+
+  /** 検出内容 */
+  public static class Finding {
+
+    public final Kind kind;
+
+    /** そこに至るキー入力 */
+    public final int[]path;
+
+    /** 検出時のプログラムカウンタ */
+    public final int pc;
+
+    public final String message;
+
+    Finding(Kind kind, int[]path, int pc, String message) {
+      this.kind = kind;
+      this.path = path;
+      this.pc = pc;
+      this.message = message;
+    }
+
+    @Override
+    public String toString() {
+      return kind.description + " pc:" + pc + " [" + pathString(path) + "] " + message;
+    }
+  }
+
+  /** 探索結果 */
+  public static class Report {
+
+    /** 展開した状態のハッシュ値 */
+    final Set<Long>states = ConcurrentHashMap.newKeySet();
+
+    /** 到達した入力待ちのプログラムカウンタ */
+    final Set<Integer>inputPoints = ConcurrentHashMap.newKeySet();
+
+    /** 検出内容 */
+    final Queue<Finding>findings = new ConcurrentLinkedQueue<Finding>();
+
+    /** 全分岐の実行コマンド数 */
+    final LongAdder instructions = new LongAdder();
+
+    /** 状態数の上限で打ち切った */
+    volatile boolean truncated;
+
+    /** 所要時間 */
+    long nanos;
+
+    void add(Finding finding) {
+      findings.add(finding);
+    }
+
+    /** 展開した状態数 */
+    public int stateCount() {
+      return states.size();
+    }
+
+    /** 到達した入力待ちのプログラムカウンタ */
+    public SortedSet<Integer> inputPoints() {
+      return new TreeSet<Integer>(inputPoints);
+    }
+
+    /** 検出内容。キー入力の短い順 */
+    public List<Finding> findings() {
+      List<Finding>list = new ArrayList<Finding>(findings);
+      Collections.sort(list, (a, b)->a.path.length != b.path.length?
+          a.path.length - b.path.length:a.pc - b.pc);
+      return list;
+    }
+
+    /** 状態数の上限で打ち切ったか */
+    public boolean isTruncated() {
+      return truncated;
+    }
+
+    /** 出力する */
+    public void print(PrintStream out) {
+      out.println("states:" + stateCount() + (truncated? "(打ち切り)":"") +
+          " inputPoints:" + inputPoints() + " instructions:" + instructions.sum() +
+          String.format(" time:%.3fs", nanos / 1e9));
+      for (Finding finding: findings()) out.println("  " + finding);
+    }
+  }
+}
@@ -13,6 +13,43 @@ public class FileArea extends Listenable {
   /** ファイルリスト */
   protected ArrayList<MemoryFile>fileList = new ArrayList<MemoryFile>();
 
+  /** ファイルの作成・削除のたびに増加する世代番号。
+   * ファイルを事前に解決しておく側が、その有効性を確認するのに用いる */
+  protected int generation;
+
+  /** 世代番号を取得 */
+  public int generation() {
+    return generation;
+  }
+
+  /**
+   * 複製を作成する。ファイルデータは複製元と共有し、どちらかに書き込みが
+   * あった時点で、書き込む側がコピーを作成する。リスナーは複製しない
+   */
+  public FileArea copy() {
+    for (MemoryFile file: fileList) file.shared = true;
+    return sharedCopy();
+  }
+
+  /**
+   * すべてのファイルが共有済みのものの複製を作成する。複製元には書き込まないので、
+   * 書き込みのない複製元であれば複数のスレッドから同時に呼び出してよい
+   */
+  FileArea sharedCopy() {
+    FileArea area = new FileArea();
+    for (MemoryFile file: fileList) area.fileList.add(area.new MemoryFile(file));
+    area.generation = generation;
+    return area;
+  }
+
+  /** copy()で作成されてから書き込まれた、あるいは新たに作成されたファイルの名前 */
+  public List<SJIS> writtenFiles() {
+    List<SJIS>list = new ArrayList<SJIS>();
+    for (MemoryFile file: fileList)
+      if (!file.shared) list.add(file.filename);
+    return list;
+  }
+
   /** 指定された名前のファイルを取得 */
   protected MemoryFile getFile(SJIS filename) {
     
@@ -27,9 +64,12 @@ public class FileArea extends Listenable {
 
     
     MemoryFile file = ensureFile(filename);
+    fireModifying(file, 0, file.fileSize);
     file.fileData = bytes;
+    file.shared = false;
     file.fileSize = bytes.length;
     file.recordPointer = 0;
+    fireAccessed(file, true);
   }
 
   /** ファイルを取得。存在しなければ作成 */
@@ -39,6 +79,8 @@ public class FileArea extends Listenable {
       file = new MemoryFile();
       file.filename = filename;
       fileList.add(file);
+      generation++;
+      fireCreated(file);
     }
     return file;
   }
@@ -48,13 +90,29 @@ public class FileArea extends Listenable {
     for (int i = 0; i < fileList.size(); i++) {
       MemoryFile file = fileList.get(i);
       if (file.filename.equals(filename)) {
+        fireDeleting(file, i);
         fileList.remove(i);
+        generation++;
         return true;
       }
     }
     return false;
   }
 
+  /** 複製の内容で置き換える。複製のファイルデータは共有する。
+   * 複製のファイルは共有済みでなければならない */
+  void restoreFrom(FileArea area) {
+    fileList.clear();
+    for (MemoryFile file: area.fileList) fileList.add(new MemoryFile(file));
+    generation++;
+  }
+
+  /** 削除されたファイルを元の位置に戻す */
+  void reinsert(MemoryFile file, int index) {
+    fileList.add(Math.min(index, fileList.size()), file);
+    generation++;
+  }
+
   /////////////////////////////////////////////////////////////////////////////
 
   /**
@@ -83,17 +141,61 @@ public class FileArea extends Listenable {
     /** EOF状態 */
     protected boolean eof = true;
 
+    /** fileDataを他のFileAreaと共有している */
+    protected boolean shared;
+
+    protected MemoryFile() {
+    }
+
+    /** 複製。データは共有する。複製元は共有済みにしておくこと */
+    protected MemoryFile(MemoryFile source) {
+      assert(source.shared);
+      filename = source.filename;
+      fileData = source.fileData;
+      recordPointer = source.recordPointer;
+      fileSize = source.fileSize;
+      eof = source.eof;
+      shared = true;
+    }
+
     @Override
     public String toString() {
       return "filename:" + filename + ", size:" + fileSize + 
         ", pointer:" + recordPointer + ", eof:" + eof;
     }
     
+    /** ファイル名を取得 */
+    public SJIS filename() {
+      return filename;
+    }
+
+    /** レコードポインタを取得 */
+    public int recordPointer() {
+      return recordPointer;
+    }
+
     /** ファイルサイズを取得 */
     public int fileSize() {
       return fileSize;
     }
 
+    /** 変更前の状態を戻す。bytesはposから書き戻すデータ */
+    void restore(int pos, byte[]bytes, int fileSize, int recordPointer, boolean eof) {
+      if (bytes.length > 0) {
+        int needSize = pos + bytes.length;
+        if (shared || fileData.length < needSize) {
+          byte[]newData = new byte[Math.max(needSize, fileData.length)];
+          System.arraycopy(fileData, 0, newData, 0, fileData.length);
+          fileData = newData;
+          shared = false;
+        }
+        System.arraycopy(bytes, 0, fileData, pos, bytes.length);
+      }
+      this.fileSize = fileSize;
+      this.recordPointer = recordPointer;
+      this.eof = eof;
+    }
+
     /** 全ファイルバイトを取得 */
     public byte[]getBytes() {
       byte[]bytes = new byte[fileSize];
@@ -104,21 +206,26 @@ public class FileArea extends Listenable {
     /** 現在のポインタから書込み */
     public void write(SJIS sjis) {
 
+      fireModifying(this, recordPointer, sjis.length());
       int needSize = recordPointer + sjis.length();
-      if (fileData.length < needSize) {
-        int newSize = Math.max(needSize, fileData.length * 2);
+      if (shared || fileData.length < needSize) {
+        int newSize = fileData.length;
+        if (newSize < needSize) newSize = Math.max(needSize, fileData.length * 2);
         byte[]newData = new byte[newSize];
         System.arraycopy(fileData, 0, newData, 0, fileData.length);
         fileData = newData;
+        shared = false;
       }
       System.arraycopy(sjis.getBytes(), 0, fileData, recordPointer, sjis.length());
       fileSize = Math.max(needSize, fileSize);
 
       eof = false;
+      fireAccessed(this, true);
     }
 
     /** 最後に追加 */
     public void append(SJIS sjis) {
+      fireModifying(this, 0, 0);
       recordPointer = fileSize;
       write(sjis);
 
@@ -131,6 +238,7 @@ public class FileArea extends Listenable {
      * レコートポインタは移動しないため、返り値をみずにoverwriteすると
      * 空白が書き込まれてしまうことに注意 */
     public boolean previous(int size) {
+      fireModifying(this, 0, 0);
       if (0 <= recordPointer - size) {
         recordPointer -= size;
         eof = false;
@@ -142,6 +250,7 @@ public class FileArea extends Listenable {
 
     /** 後のレコードへ */
     public boolean next(int size) {
+      fireModifying(this, 0, 0);
       if (recordPointer + size <= fileSize - size) {
         recordPointer += size;
         eof = false;
@@ -153,6 +262,7 @@ public class FileArea extends Listenable {
 
     /** 最初のレコードへ */
     public boolean top(int size) {
+      fireModifying(this, 0, 0);
       if (size <= fileSize) {
         recordPointer = 0;
         eof = false;
@@ -164,6 +274,7 @@ public class FileArea extends Listenable {
 
     /** 最後のレコードへ */
     public boolean bottom(int size) {
+      fireModifying(this, 0, 0);
       if (size <= fileSize) {
         recordPointer = fileSize - size;
         eof = false;
@@ -177,6 +288,7 @@ public class FileArea extends Listenable {
     public SJIS read(int size) {
 
       
+      fireAccessed(this, false);
       if (eof) return new SJIS(size);
 
       if (recordPointer + size > fileSize) return null;
@@ -193,6 +305,7 @@ public class FileArea extends Listenable {
 
     /** 位置付けする */
     public boolean position(int recordLen, int index) {
+      fireModifying(this, 0, 0);
 
       int newPointer = recordLen * index;
       //ystem.err.println(" fileSize " + fileSize + "," + index + "," + (fileSize / recordLen));
@@ -206,6 +319,59 @@ public class FileArea extends Listenable {
     }
   }
 
+  /////////////////////////////////////////////////////////////////////////////
+  // リスナ
+  /////////////////////////////////////////////////////////////////////////////
+
+  /** ファイルの読み書きを通知する。リスナーがなければ何もしない */
+  protected void fireAccessed(MemoryFile file, boolean write) {
+    if (!hasListeners()) return;
+    for (Listener l: getListeners(NO_LISTENERS))
+      l.accessed(file, write);
+  }
+
+  /** ファイルの変更前に通知する */
+  protected void fireModifying(MemoryFile file, int pos, int length) {
+    if (!hasListeners()) return;
+    for (Listener l: getListeners(NO_LISTENERS))
+      l.modifying(file, pos, length);
+  }
+
+  /** ファイルの作成を通知する */
+  protected void fireCreated(MemoryFile file) {
+    if (!hasListeners()) return;
+    for (Listener l: getListeners(NO_LISTENERS))
+      l.created(file);
+  }
+
+  /** ファイルの削除前に通知する */
+  protected void fireDeleting(MemoryFile file, int index) {
+    if (!hasListeners()) return;
+    for (Listener l: getListeners(NO_LISTENERS))
+      l.deleting(file, index);
+  }
+
+  private static final Listener[]NO_LISTENERS = new Listener[0];
+
+  /** ファイルの読込、書込みのリスナー */
+  public interface Listener {
+
+    /** 読込あるいは書込みの後 */
+    void accessed(MemoryFile file, boolean write);
+
+    /** 変更の前。posからlengthバイトが書き換えられる。ポインタのみの変更ではlengthは0 */
+    default void modifying(MemoryFile file, int pos, int length) {
+    }
+
+    /** 作成の後 */
+    default void created(MemoryFile file) {
+    }
+
+    /** 削除の前。indexはファイルリスト中の位置 */
+    default void deleting(MemoryFile file, int index) {
+    }
+  }
+
   /////////////////////////////////////////////////////////////////////////////
   //
   /////////////////////////////////////////////////////////////////////////////
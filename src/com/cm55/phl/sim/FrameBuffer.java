@@ -22,6 +22,55 @@ public class FrameBuffer extends Listenable {
     clearAll();
   }
 
+  /** 内容の複製を作成する。リスナーは複製しない */
+  public synchronized FrameBuffer copy() {
+    FrameBuffer fb = create();
+    for (int y = 0; y < numRows; y++)
+      System.arraycopy(rows[y], 0, fb.rows[y], 0, numColumns);
+    fb.cursor = cursor;
+    return fb;
+  }
+
+  /**
+   * 複製用の空のフレームバッファを作成する。サブクラスは同じ設定の自身のクラスの
+   * インスタンスを返すようにオーバーライドすること
+   */
+  protected FrameBuffer create() {
+    return new FrameBuffer(numColumns, numRows);
+  }
+
+  /** 複製の内容で置き換える */
+  synchronized void restoreFrom(FrameBuffer fb) {
+    for (int y = 0; y < numRows; y++)
+      System.arraycopy(fb.rows[y], 0, rows[y], 0, numColumns);
+    cursor = fb.cursor;
+    fireChanged(0, 0, numColumns, numRows);
+  }
+
+  /** 矩形内のセルを行順に取得する */
+  synchronized Cell[]getCells(FBRect rect) {
+    Cell[]cells = new Cell[rect.width * rect.height];
+    for (int y = 0; y < rect.height; y++)
+      System.arraycopy(rows[rect.y + y], rect.x, cells, y * rect.width, rect.width);
+    return cells;
+  }
+
+  /** 矩形内のセルとカーソル位置を設定する */
+  synchronized void setCells(FBRect rect, Cell[]cells, FBPoint cursor) {
+    for (int y = 0; y < rect.height; y++)
+      System.arraycopy(cells, y * rect.width, rows[rect.y + y], rect.x, rect.width);
+    this.cursor = cursor;
+    fireChanged(rect.x, rect.y, rect.width, rect.height);
+  }
+
+  /** 画面内容とカーソル位置のハッシュ値。状態の同一性の判定に用いる */
+  public synchronized long contentHash() {
+    long h = cursor == null? -1:cursor.y * numColumns + cursor.x;
+    for (int y = 0; y < numRows; y++)
+      for (int x = 0; x < numColumns; x++) h = h * 31 + rows[y][x].code;
+    return h;
+  }
+
   public int numRows() { return numRows; }
   public int numColumns() { return numColumns; }
 
@@ -154,11 +203,14 @@ public class FrameBuffer extends Listenable {
   /////////////////////////////////////////////////////////////////////////////
 
   protected void fireChanged(int x, int y, int width, int height) {
+    if (!hasListeners()) return;
     FBRect rect = new FBRect(x, y, width, height);
-    for (Listener l: getListeners(new Listener[0]))
+    for (Listener l: getListeners(NO_LISTENERS))
       l.changed(rect);
   }
 
+  private static final Listener[]NO_LISTENERS = new Listener[0];
+
   public interface Listener {
     public void changed(FBRect rect);
   }
@@ -0,0 +1,124 @@
+package com.cm55.phl.sim;
+
+import java.util.*;
+
+import com.cm55.phl.*;
+
+/**
+ * 画面を描画しないフレームバッファ
+ * <p>
+ * 画面を確認しない一括検証用。シミュレータに渡すと、リンク済みコードの表示コマンドは
+ * 何もしないノードになり、入力のエコーやカーソルの描画も行われず、
+ * リスナーへの通知もない。レジスタ、RSLT等のシステムレジスタ、ファイルへの
+ * 影響は通常どおりである。
+ * </p>
+ * <p>
+ * captureを指定すると、表示コマンドはセルに直接描画されるが、リスナーへの通知は
+ * 行わない。入力コマンドに達した時点で、その画面の文字列を保存する。
+ * </p>
+ */
+public class HeadlessFrameBuffer extends FrameBuffer {
+
+  /** 入力コマンドに達した時点の画面を保存する */
+  protected final boolean capture;
+
+  /** コンストラクタの実行が終わった */
+  private boolean constructed;
+
+  /** 保存した画面 */
+  protected final List<Screen>screens = new ArrayList<Screen>();
+
+  /** 大きさと、入力コマンドに達した時点の画面を保存するかを指定して作成する */
+  public HeadlessFrameBuffer(int numColumns, int numRows, boolean capture) {
+    super(numColumns, numRows);
+    this.capture = capture;
+    constructed = true;
+  }
+
+  /** 同じ設定で作成する。保存した画面は引き継がない */
+  @Override
+  protected FrameBuffer create() {
+    return new HeadlessFrameBuffer(numColumns, numRows, capture);
+  }
+
+  /** 入力コマンドに達した時点の画面を保存するか */
+  public boolean isCapturing() {
+    return capture;
+  }
+
+  @Override
+  public synchronized void clearAll() {
+    // スーパークラスのコンストラクタからの呼び出しでは常に消去する
+    if (capture || !constructed) super.clearAll();
+  }
+
+  @Override
+  public synchronized void clearPart(int y, int x1, int length, byte attr) {
+    if (capture) super.clearPart(y, x1, length, attr);
+  }
+
+  @Override
+  public synchronized void drawSJIS(int y, int x, SJIS sjis, byte attr) {
+    if (capture) super.drawSJIS(y, x, sjis, attr);
+  }
+
+  @Override
+  public synchronized void cursorOff() {
+  }
+
+  @Override
+  public synchronized void cursorOn(int y, int x) {
+  }
+
+  /** 入力コマンドに達した */
+  synchronized void inputPoint(long instructionCount, Command command) {
+    if (!capture) return;
+    String[]rows = new String[numRows];
+    for (int y = 0; y < numRows; y++) rows[y] = getRow(y).toString();
+    screens.add(new Screen(instructionCount, command, rows));
+  }
+
+  /** 保存した画面。古い順 */
+  public synchronized List<Screen> screens() {
+    return new ArrayList<Screen>(screens);
+  }
+
+  /** リスナーには通知しない */
+  @Override
+  protected void fireChanged(int x, int y, int width, int height) {
+  }
+
+  /** 保存した画面を捨てる */
+  public synchronized void clearScreens() {
+    screens.clear();
+  }
+
+  /** 入力コマンドに達した時点の画面 */
+  public static class Screen {
+
+    /** 実行コマンド数 */
+    public final long instructionCount;
+
+    /** 入力コマンド */
+    public final Command command;
+
+    /** 各行の文字列 */
+    public final String[]rows;
+
+    Screen(long instructionCount, Command command, String[]rows) {
+      this.instructionCount = instructionCount;
+      this.command = command;
+      this.rows = rows;
+    }
+
+    /** 画面の文字列。行を改行でつないだもの */
+    public String text() {
+      return String.join("\n", rows);
+    }
+
+    @Override
+    public String toString() {
+      return instructionCount + " " + command + "\n" + text();
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package com.cm55.phl.sim;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * 複数生産者・単一消費者のint値キュー
+ * <p>
+ * ロックを使用しない。生産者側はノードを一つ追加するだけで、ノードはint配列を
+ * 保持するので、まとめて投入する場合もノードは一つになる。消費者側はノードの
+ * 配列を先頭から読み進め、読み終わったら次のノードへ移る。
+ * </p>
+ * <p>
+ * poll()、unread()、isEmpty()、toArray()は一度に一つのスレッドからのみ呼び出すこと。
+ * </p>
+ * <p>
+ * 消費者が待機する場合は、待機中であることをvolatile変数に書いてからisEmpty()を
+ * 確認し、生産者は追加してからその変数を読んで起こすこと。連結と確認が共に
+ * volatileの読み書きなので、どちらかが必ず相手を見つけ、起こし損ないはない。
+ * </p>
+ */
+public class IntQueue {
+
+  /** ノード */
+  static final class Node {
+
+    /** 値 */
+    final int[]values;
+
+    /** 消費者が次に読む位置 */
+    int read;
+
+    /** 次のノード */
+    volatile Node next;
+
+    Node(int[]values) {
+      this.values = values;
+    }
+  }
+
+  /** 生産者側の末尾 */
+  private final AtomicReference<Node>last;
+
+  /** 消費者側の先頭 */
+  private Node first;
+
+  public IntQueue() {
+    first = new Node(new int[0]);
+    last = new AtomicReference<Node>(first);
+  }
+
+  /** 値を一つ追加する */
+  public void offer(int value) {
+    offerAll(new int[] { value });
+  }
+
+  /** 配列の値をすべて追加する。配列はコピーせずにそのまま保持される */
+  public void offerAll(int[]values) {
+    if (values.length == 0) return;
+    Node node = new Node(values);
+    Node prev = last.getAndSet(node);
+    prev.next = node;
+  }
+
+  /** 値を一つ取り出す。なければ-1を返す */
+  public int poll() {
+    while (true) {
+      Node node = first;
+      if (node.read < node.values.length) return node.values[node.read++];
+      Node next = node.next;
+      if (next == null) return -1;
+      first = next;
+    }
+  }
+
+  /** 値を先頭に戻す。次のpoll()で返される。消費者側から呼び出すこと */
+  public void unread(int value) {
+    Node node = new Node(new int[] { value });
+    node.next = first;
+    first = node;
+  }
+
+  /** 空であるか。生産者が追加中の値は含まれないことがある */
+  public boolean isEmpty() {
+    Node node = first;
+    while (node.read >= node.values.length) {
+      node = node.next;
+      if (node == null) return true;
+    }
+    return false;
+  }
+
+  /** 未処理の値をすべて、取り出さずに取得する */
+  public int[]toArray() {
+    int size = 0;
+    for (Node node = first; node != null; node = node.next)
+      size += node.values.length - node.read;
+    int[]result = new int[size];
+    int pos = 0;
+    for (Node node = first; node != null && pos < size; node = node.next) {
+      int length = Math.min(node.values.length - node.read, size - pos);
+      System.arraycopy(node.values, node.read, result, pos, length);
+      pos += length;
+    }
+    return result;
+  }
+
+  /** すべて破棄する */
+  public void clear() {
+    while (poll() >= 0);
+  }
+}
@@ -0,0 +1,152 @@
+package com.cm55.phl.sim;
+
+import java.io.*;
+import java.util.*;
+
+import com.cm55.phl.*;
+import com.cm55.phl.Command.*;
+import com.cm55.phl.sim.LinkedCode.*;
+
+/**
+ * 実機での応答時間の予測
+ * <p>
+ * コストモデルにより、実行したコマンドの実機での予想時間を積算し、入力コマンドに
+ * 達した時点で、前の入力コマンドからの予想時間を一つの応答として記録する。
+ * 入力がすでにあって待たなかった場合も同じである。予算を超えた応答には
+ * 印が付けられる。時間待ちの待ち時間は含まれない。
+ * Simulator.setLatencyMonitor()で設定すると、プロファイラと同様にリンク済みコードの
+ * 全ノードが包まれる。
+ * </p>
+ */
+public class LatencyMonitor {
+
+  /** コストモデル */
+  protected final CostModel model;
+
+  /** 応答時間の予算(μs)。0の場合は判定しない */
+  protected long budget;
+
+  /** 応答の記録 */
+  protected final List<Interaction>interactions = new ArrayList<Interaction>();
+
+  /** 予算を超えた応答の数 */
+  protected int exceededCount;
+
+  /** 現在の応答の開始位置。プログラム開始時は-1 */
+  private int fromPc = -1;
+
+  /** 現在の応答で実行したコマンド数 */
+  private long commands;
+
+  /** 現在の応答の予想時間(μs) */
+  private long micros;
+
+  /** コストモデルと予算(μs)を指定して作成する */
+  public LatencyMonitor(CostModel model, long budget) {
+    this.model = model;
+    this.budget = budget;
+  }
+
+  /** 応答時間の予算(μs)を設定する。0の場合は判定しない */
+  public void setBudget(long budget) {
+    this.budget = budget;
+  }
+
+  /** リンク済みコードのノードを計測ノードで包む */
+  void install(LinkedCode linked) {
+    Node[]nodes = linked.nodes;
+    for (int i = 0; i < nodes.length; i++) nodes[i] = new CostNode(nodes[i]);
+  }
+
+  /** 計測ノード */
+  class CostNode extends WrapperNode {
+    CostNode(Node original) {
+      super(original);
+    }
+    @Override
+    public int execute(Simulator sim, int pc) {
+      boolean input = command instanceof NoEchoInput || command instanceof LineInput;
+      if (input && !sim.resuming && commands > 0) close(pc);
+      long preCost = model.preCost(sim, command);
+      int next = original.execute(sim, pc);
+      if (sim.status == Simulator.Status.RUNNING) {
+        commands++;
+        micros += preCost + model.cost(sim, command);
+        if (input) fromPc = pc;
+      }
+      return next;
+    }
+  }
+
+  /** 入力コマンドに達したので現在の応答を記録する */
+  private void close(int toPc) {
+    boolean exceeded = budget > 0 && micros > budget;
+    if (exceeded) exceededCount++;
+    interactions.add(new Interaction(fromPc, toPc, commands, micros, exceeded));
+    fromPc = toPc;
+    commands = 0;
+    micros = 0;
+  }
+
+  /** 一つの応答 */
+  public static class Interaction {
+
+    /** 開始した入力コマンドのインデックス。プログラム開始時は-1 */
+    public final int fromPc;
+
+    /** 次の入力コマンドのインデックス */
+    public final int toPc;
+
+    /** 実行したコマンド数 */
+    public final long commands;
+
+    /** 予想時間(μs) */
+    public final long micros;
+
+    /** 予算を超えた */
+    public final boolean exceeded;
+
+    Interaction(int fromPc, int toPc, long commands, long micros, boolean exceeded) {
+      this.fromPc = fromPc;
+      this.toPc = toPc;
+      this.commands = commands;
+      this.micros = micros;
+      this.exceeded = exceeded;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s%5d ->%5d %8d %10.1fms", exceeded? "!":" ",
+          fromPc, toPc, commands, micros / 1000.0);
+    }
+  }
+
+  /** 記録した応答。古い順 */
+  public List<Interaction> interactions() {
+    return interactions;
+  }
+
+  /** 予算を超えた応答の数 */
+  public int exceededCount() {
+    return exceededCount;
+  }
+
+  /** 記録を捨てる */
+  public void clear() {
+    interactions.clear();
+    fromPc = -1;
+    exceededCount = 0;
+    commands = 0;
+    micros = 0;
+  }
+
+  /** レポートを出力する。onlyExceededがtrueの場合は予算を超えた応答のみ */
+  public void report(HTCCode code, PrintStream out, boolean onlyExceeded) {
+    out.println(String.format("応答数:%d 予算超過:%d 予算:%.1fms",
+        interactions.size(), exceededCount, budget / 1000.0));
+    for (Interaction interaction: interactions) {
+      if (onlyExceeded && !interaction.exceeded) continue;
+      out.println(interaction + "  " + code.getCommand(interaction.toPc));
+    }
+  }
+}
@@ -0,0 +1,469 @@
+package com.cm55.phl.sim;
+
+import java.lang.reflect.Method;
+import java.util.*;
+
+import com.cm55.phl.*;
+import com.cm55.phl.Command.*;
+import com.cm55.phl.PHL.*;
+import com.cm55.phl.sim.FileArea.*;
+import com.cm55.phl.sim.Simulator.*;
+
+/**
+ * リンク済みコード
+ * <p>
+ * HTCCodeのコマンド列を、実行用に特化したノードの配列に変換したもの。
+ * ノードはコマンド列と一対一に対応し、配列のインデックスがそのままプログラム
+ * カウンタになる。ロード時に以下を解決しておく。
+ * </p>
+ * <ul>
+ * <li>ジャンプ先ラベルのコマンド列インデックス
+ * <li>JumpIf、Assignの定数の、比較先・代入先の型への変換
+ * <li>ファイル名が定数であるファイルコマンドの対象ファイル
+ * </ul>
+ * <p>
+ * 特化ノードの処理内容はSimulatorのMethodForメソッドと同一である。
+ * サブクラスでMethodForメソッドがオーバーライドされている場合、あるいは
+ * ハンドラが置き換えられている場合には、そのコマンドはハンドラ経由で実行される。
+ * リンク済みコードはハンドラやファイルの解決結果を保持するため、シミュレータ
+ * ごとに作成される。
+ * </p>
+ */
+public class LinkedCode {
+
+  /** コマンド種類とMethodForメソッドのマップ */
+  private static final EnumMap<Cmd,Method>methodForMap = new EnumMap<Cmd,Method>(Cmd.class);
+  static {
+    for (Method method: Simulator.class.getDeclaredMethods()) {
+      MethodFor methodFor = method.getAnnotation(MethodFor.class);
+      if (methodFor == null) continue;
+      for (Cmd cmd: Cmd.values()) {
+        if (cmd.clazz == methodFor.cls()) methodForMap.put(cmd, method);
+      }
+    }
+  }
+
+  /** 元のコード */
+  public final HTCCode code;
+
+  /** ノード配列 */
+  final Node[]nodes;
+
+  /** 表示コマンドを何もしないノードにする。画面を描画しないフレームバッファの場合 */
+  private final boolean skipDisplay;
+
+  /** コードとシミュレータを指定してリンクする */
+  public LinkedCode(HTCCode code, Simulator sim) {
+    this.code = code;
+    boolean bindFiles = !overridden(sim.getClass(), "getFilenameSJIS", Filename.class);
+    skipDisplay = sim.frameBuffer instanceof HeadlessFrameBuffer &&
+        !((HeadlessFrameBuffer)sim.frameBuffer).isCapturing();
+    nodes = new Node[code.numCommands()];
+    for (int i = 0; i < nodes.length; i++) {
+      Command command = code.getCommand(i);
+      Node node = null;
+      if (specializable(sim, command.cmd))
+        node = createNode(command, bindFiles);
+      if (node == null)
+        node = new HandlerNode(command, sim.getHandler(command.cmd));
+      nodes[i] = node;
+    }
+  }
+
+  /** ノード数を取得 */
+  public int size() {
+    return nodes.length;
+  }
+
+  /** ノードを取得 */
+  public Node getNode(int index) {
+    return nodes[index];
+  }
+
+  /** 特化ノードを作成する。特化しないコマンドの場合はnullを返す */
+  protected Node createNode(Command command, boolean bindFiles) {
+    switch (command.cmd) {
+    case Label:
+    case BarcodeInfo:
+      return new NopNode(command);
+    case DisplayString:
+    case DisplayRegister:
+    case DisplayClear:
+    case DisplayPartClear:
+      return skipDisplay? new NopNode(command):null;
+    case Jump: {
+      Jump jump = (Jump)command;
+      if (!jump.hasTargetLabel()) return null;
+      return new JumpNode(command, jump.getTargetLabel().getIndex());
+    }
+    case JumpIf: {
+      JumpIf jumpIf = (JumpIf)command;
+      if (!jumpIf.hasTargetLabel()) return null;
+      return JumpIfNode.create(jumpIf, jumpIf.getTargetLabel().getIndex());
+    }
+    case Assign:
+      return new AssignNode((Assign)command);
+    case RecordRead: {
+      RecordRead c = (RecordRead)command;
+      return new RecordReadNode(c, new FileHandle(c.filename, false, bindFiles));
+    }
+    case RecordWrite: {
+      RecordWrite c = (RecordWrite)command;
+      return new RecordWriteNode(c, new FileHandle(c.filename, true, bindFiles));
+    }
+    case RecordCount: {
+      RecordCount c = (RecordCount)command;
+      return new RecordCountNode(c, new FileHandle(c.filename, false, bindFiles));
+    }
+    case FileExists: {
+      FileExists c = (FileExists)command;
+      return new FileExistsNode(c, new FileHandle(c.filename, false, bindFiles));
+    }
+    case MasterSearch: {
+      MasterSearch c = (MasterSearch)command;
+      return new MasterSearchNode(c, new FileHandle(c.filename, false, bindFiles));
+    }
+    default:
+      return null;
+    }
+  }
+
+  /** 指定コマンドを特化ノードにできるか。
+   * ハンドラが置き換えられておらず、MethodForメソッドがオーバーライドされていない */
+  static boolean specializable(Simulator sim, Cmd cmd) {
+    if (sim.getHandler(cmd) != Simulator.defaultHandlers[cmd.ordinal()]) return false;
+    Method method = methodForMap.get(cmd);
+    if (method == null) return false;
+    return !overridden(sim.getClass(), method.getName(), method.getParameterTypes());
+  }
+
+  /** Simulatorのメソッドがサブクラスでオーバーライドされているか */
+  static boolean overridden(Class<?>simClass, String name, Class<?>...paramTypes) {
+    for (Class<?>c = simClass; c != Simulator.class; c = c.getSuperclass()) {
+      try {
+        c.getDeclaredMethod(name, paramTypes);
+        return true;
+      } catch (NoSuchMethodException ex) {
+      }
+    }
+    return false;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // ノード
+  /////////////////////////////////////////////////////////////////////////////
+
+  /** 実行ノード */
+  public abstract static class Node {
+
+    /** 元のコマンド */
+    public final Command command;
+
+    protected Node(Command command) {
+      this.command = command;
+    }
+
+    /** 実行し、次のプログラムカウンタを返す */
+    public abstract int execute(Simulator sim, int pc);
+  }
+
+  /** 他のノードを包むノード。カウンタ、コンパイル済みブロック、融合命令など */
+  public abstract static class WrapperNode extends Node {
+
+    /** 包まれている元のノード */
+    public final Node original;
+
+    protected WrapperNode(Node original) {
+      super(original.command);
+      this.original = original;
+    }
+  }
+
+  /** 包まれているノードをすべて外した、元のノードを取得する */
+  public static Node unwrap(Node node) {
+    while (node instanceof WrapperNode) node = ((WrapperNode)node).original;
+    return node;
+  }
+
+  /** ハンドラを呼び出すノード。特化していないコマンドはすべてこれ */
+  static class HandlerNode extends Node {
+    final Handler handler;
+    HandlerNode(Command command, Handler handler) {
+      super(command);
+      this.handler = handler;
+    }
+    @Override
+    public int execute(Simulator sim, int pc) {
+      sim.pc = pc + 1;
+      handler.execute(sim, command);
+      return sim.pc;
+    }
+  }
+
+  /** 何もしない。ラベル、バーコード情報 */
+  static class NopNode extends Node {
+    NopNode(Command command) {
+      super(command);
+    }
+    @Override
+    public int execute(Simulator sim, int pc) {
+      return pc + 1;
+    }
+  }
+
+  /** 無条件ジャンプ */
+  static class JumpNode extends Node {
+    final int target;
+    JumpNode(Command command, int target) {
+      super(command);
+      this.target = target;
+    }
+    @Override
+    public int execute(Simulator sim, int pc) {
+      return target;
+    }
+  }
+
+  /** 条件ジャンプ。右側が定数の場合は左側の型に変換済み。
+   * 比較は左側の型ごとのサブクラスで行う */
+  abstract static class JumpIfNode extends Node {
+    final Register left;
+    final Comp comp;
+    final Register rightReg;
+    final Object rightValue;
+    final int target;
+    JumpIfNode(JumpIf command, int target) {
+      super(command);
+      this.left = command.register;
+      this.comp = command.comp;
+      Object operand = command.getOperand();
+      if (operand instanceof Register) {
+        rightReg = (Register)operand;
+        rightValue = null;
+      } else {
+        rightReg = null;
+        rightValue = operand;
+      }
+      this.target = target;
+    }
+    static JumpIfNode create(JumpIf command, int target) {
+      switch (command.register.type()) {
+      case INTEGER: return new IntJumpIfNode(command, target);
+      case FLOAT: return new FloatJumpIfNode(command, target);
+      default: return new SJISJumpIfNode(command, target);
+      }
+    }
+    @Override
+    public int execute(Simulator sim, int pc) {
+      return test(sim.regStore)? target:pc + 1;
+    }
+    abstract boolean test(RegisterStore regStore);
+  }
+
+  /** 整数の条件ジャンプ */
+  static class IntJumpIfNode extends JumpIfNode {
+    final Comparison.IntTest test;
+    final int value;
+    IntJumpIfNode(JumpIf command, int target) {
+      super(command, target);
+      test = Comparison.intTest(comp);
+      value = rightReg == null? (Integer)rightValue:0;
+    }
+    @Override
+    boolean test(RegisterStore regStore) {
+      return test.test(regStore.getInt(left),
+          rightReg == null? value:Comparison.getInt(regStore, rightReg));
+    }
+  }
+
+  /** 実数の条件ジャンプ */
+  static class FloatJumpIfNode extends JumpIfNode {
+    final Comparison.FloatTest test;
+    final float value;
+    FloatJumpIfNode(JumpIf command, int target) {
+      super(command, target);
+      test = Comparison.floatTest(comp);
+      value = rightReg == null? (Float)rightValue:0;
+    }
+    @Override
+    boolean test(RegisterStore regStore) {
+      return test.test(regStore.getFloat(left),
+          rightReg == null? value:Comparison.getFloat(regStore, rightReg));
+    }
+  }
+
+  /** 文字列の条件ジャンプ */
+  static class SJISJumpIfNode extends JumpIfNode {
+    final Comparison.SJISTest test;
+    SJISJumpIfNode(JumpIf command, int target) {
+      super(command, target);
+      test = Comparison.sjisTest(comp);
+    }
+    @Override
+    boolean test(RegisterStore regStore) {
+      return test.test(regStore.getSJIS(left),
+          rightReg == null? (SJIS)rightValue:Comparison.getSJIS(regStore, rightReg));
+    }
+  }
+
+  /** 代入。定数の場合は代入先の型に変換済み。
+   * 同じ型のレジスタ間、定数からの代入はボクシングせずに行う */
+  static class AssignNode extends Node {
+    final Register dst;
+    final Type type;
+    final Register srcReg;
+    final Object srcValue;
+    AssignNode(Assign command) {
+      super(command);
+      this.dst = command.dst;
+      this.type = dst.type();
+      Object operand = command.getOperand();
+      if (operand instanceof Register) {
+        srcReg = (Register)operand;
+        srcValue = null;
+      } else {
+        srcReg = null;
+        srcValue = operand;
+      }
+    }
+    @Override
+    public int execute(Simulator sim, int pc) {
+      RegisterStore regStore = sim.regStore;
+      if (srcReg == null) {
+        regStore.setValue(dst, srcValue);
+      } else if (srcReg.type() != type) {
+        // 型が異なる場合は一律に文字列に変換
+        regStore.setValue(dst, regStore.getValue(srcReg).toString());
+      } else {
+        switch (type) {
+        case INTEGER: regStore.setInt(dst, regStore.getInt(srcReg)); break;
+        case FLOAT: regStore.setFloat(dst, regStore.getFloat(srcReg)); break;
+        default: regStore.setValue(dst, regStore.getSJIS(srcReg)); break;
+        }
+      }
+      return pc + 1;
+    }
+  }
+
+  /** レコード読込 */
+  static class RecordReadNode extends Node {
+    final FileHandle file;
+    RecordReadNode(RecordRead command, FileHandle file) {
+      super(command);
+      this.file = file;
+    }
+    @Override
+    public int execute(Simulator sim, int pc) {
+      sim.recordRead((RecordRead)command, file.get(sim));
+      return pc + 1;
+    }
+  }
+
+  /** レコード書き込み */
+  static class RecordWriteNode extends Node {
+    final FileHandle file;
+    RecordWriteNode(RecordWrite command, FileHandle file) {
+      super(command);
+      this.file = file;
+    }
+    @Override
+    public int execute(Simulator sim, int pc) {
+      sim.recordWrite((RecordWrite)command, file.get(sim));
+      return pc + 1;
+    }
+  }
+
+  /** レコード数取得 */
+  static class RecordCountNode extends Node {
+    final FileHandle file;
+    RecordCountNode(RecordCount command, FileHandle file) {
+      super(command);
+      this.file = file;
+    }
+    @Override
+    public int execute(Simulator sim, int pc) {
+      sim.recordCount((RecordCount)command, file.get(sim));
+      return pc + 1;
+    }
+  }
+
+  /** ファイル存在チェック */
+  static class FileExistsNode extends Node {
+    final FileHandle file;
+    FileExistsNode(FileExists command, FileHandle file) {
+      super(command);
+      this.file = file;
+    }
+    @Override
+    public int execute(Simulator sim, int pc) {
+      sim.fileExists((FileExists)command, file.get(sim));
+      return pc + 1;
+    }
+  }
+
+  /** マスタ検索 */
+  static class MasterSearchNode extends Node {
+    final FileHandle file;
+    MasterSearchNode(MasterSearch command, FileHandle file) {
+      super(command);
+      this.file = file;
+    }
+    @Override
+    public int execute(Simulator sim, int pc) {
+      sim.masterSearch((MasterSearch)command, file.get(sim));
+      return pc + 1;
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // ファイルハンドル
+  /////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * ファイル名が定数の場合に、対象ファイルを保持しておく。
+   * ファイルエリアの世代番号が変わった場合は解決しなおす。
+   * ファイル名がレジスタの場合は毎回解決する。
+   */
+  static class FileHandle {
+
+    /** ファイル名 */
+    final Filename filename;
+
+    /** 存在しない場合に作成するか */
+    final boolean ensure;
+
+    /** 保持してよいか */
+    final boolean bind;
+
+    /** 解決したファイルエリア */
+    private FileArea area;
+
+    /** 解決した時点の世代番号 */
+    private int generation;
+
+    /** 解決したファイル */
+    private MemoryFile file;
+
+    FileHandle(Filename filename, boolean ensure, boolean bind) {
+      this.filename = filename;
+      this.ensure = ensure;
+      this.bind = bind && filename.getSJIS() != null;
+    }
+
+    MemoryFile get(Simulator sim) {
+      FileArea fileArea = sim.fileArea;
+      if (!bind) return resolve(fileArea, sim.getFilenameSJIS(filename));
+      if (fileArea != area || fileArea.generation != generation) {
+        file = resolve(fileArea, filename.getSJIS());
+        area = fileArea;
+        generation = fileArea.generation;
+      }
+      return file;
+    }
+
+    private MemoryFile resolve(FileArea fileArea, SJIS name) {
+      if (ensure) return fileArea.ensureFile(name);
+      return fileArea.getFile(name);
+    }
+  }
+}
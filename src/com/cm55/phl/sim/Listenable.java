@@ -3,22 +3,65 @@ package com.cm55.phl.sim;
 
 import java.util.*;
 
+/**
+ * リスナーの登録
+ * <p>
+ * リスナーの配列は追加削除のたびに作り直し、volatileのフィールドで公開する。
+ * 通知側は配列を読むだけなので同期しない。シミュレータのスレッドが通知している間に、
+ * 監視用のスレッドなどから追加削除してもよい。
+ * </p>
+ */
 public class Listenable {
 
-  protected ArrayList<Object> listeners = new ArrayList<Object>();
+  private static final Object[]NO_OBJECTS = new Object[0];
 
-  public void addListener(Object l) {
-    if (listeners.indexOf(l) >= 0) return;
-    listeners.add(l);
+  /** リスナーの配列。変更せずに、作り直して置き換える */
+  private volatile Object[]listenerArray = NO_OBJECTS;
+
+  public synchronized void addListener(Object l) {
+    Object[]array = listenerArray;
+    if (indexOf(array, l) >= 0) return;
+    Object[]copy = Arrays.copyOf(array, array.length + 1, Object[].class);
+    copy[array.length] = l;
+    listenerArray = copy;
+  }
+
+  public synchronized void removeListener(Object l) {
+    Object[]array = listenerArray;
+    int index = indexOf(array, l);
+    if (index < 0) return;
+    Object[]copy = new Object[array.length - 1];
+    System.arraycopy(array, 0, copy, 0, index);
+    System.arraycopy(array, index + 1, copy, index, copy.length - index);
+    listenerArray = copy;
+  }
+
+  private static int indexOf(Object[]array, Object l) {
+    for (int i = 0; i < array.length; i++)
+      if (array[i].equals(l)) return i;
+    return -1;
   }
 
-  public void removeListener(Object l) {
-    int index = listeners.indexOf(l);
-    if (index >= 0) listeners.remove(index);
+  /** リスナーがあるか */
+  protected boolean hasListeners() {
+    return listenerArray.length > 0;
   }
 
-//  @SuppressWarnings("unchecked")
+  /** リスナーの配列を取得する。
+   * 追加削除がない限り同じ配列を返すので、呼び出し側で変更しないこと */
+  @SuppressWarnings("unchecked")
   protected <T>T[]getListeners(T[]a) {
-    return listeners.toArray(a);
+    Object[]array = listenerArray;
+    if (array.getClass() != a.getClass()) {
+      // 指定の型の配列に置き換える。同時に追加削除されていれば、その結果を使う
+      synchronized (this) {
+        array = listenerArray;
+        if (array.getClass() != a.getClass()) {
+          array = Arrays.copyOf(array, array.length, a.getClass());
+          listenerArray = array;
+        }
+      }
+    }
+    return (T[])array;
   }
 }
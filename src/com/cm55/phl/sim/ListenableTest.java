@@ -0,0 +1,75 @@
+package com.cm55.phl.sim;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.*;
+
+import org.junit.*;
+
+public class ListenableTest {
+
+  /** 追加、重複、削除 */
+  @Test
+  public void addRemove() {
+    Source source = new Source();
+    assertFalse(source.hasListeners());
+    Counter a = new Counter(), b = new Counter();
+    source.addListener(a);
+    source.addListener(b);
+    source.addListener(a);
+    source.fire();
+    assertEquals(1, a.count.get());
+    assertEquals(1, b.count.get());
+
+    source.removeListener(a);
+    source.fire();
+    assertEquals(1, a.count.get());
+    assertEquals(2, b.count.get());
+    source.removeListener(b);
+    assertFalse(source.hasListeners());
+  }
+
+  /** 通知中に別のスレッドから追加削除しても、常駐のリスナーには毎回通知される */
+  @Test(timeout = 60000)
+  public void concurrent() throws Exception {
+    Source source = new Source();
+    Counter resident = new Counter();
+    source.addListener(resident);
+    AtomicBoolean done = new AtomicBoolean();
+    Thread monitor = new Thread(()-> {
+      while (!done.get()) {
+        Counter temporary = new Counter();
+        source.addListener(temporary);
+        source.removeListener(temporary);
+      }
+    });
+    monitor.start();
+    final int count = 200000;
+    try {
+      for (int i = 0; i < count; i++) source.fire();
+    } finally {
+      done.set(true);
+      monitor.join();
+    }
+    assertEquals(count, resident.count.get());
+  }
+
+  interface Listener {
+    void fired();
+  }
+
+  static class Counter implements Listener {
+    final AtomicInteger count = new AtomicInteger();
+    public void fired() {
+      count.incrementAndGet();
+    }
+  }
+
+  static class Source extends Listenable {
+    private static final Listener[]NO_LISTENERS = new Listener[0];
+    void fire() {
+      if (!hasListeners()) return;
+      for (Listener l: getListeners(NO_LISTENERS)) l.fired();
+    }
+  }
+}
@@ -0,0 +1,303 @@
+package com.cm55.phl.sim;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.management.*;
+
+import com.cm55.phl.sim.FileArea.*;
+import com.cm55.phl.sim.FrameBuffer.*;
+
+/**
+ * シミュレータの運用メトリクス
+ * <p>
+ * セッションごとの計数と、全セッションの集計を、プラットフォームMBeanサーバに
+ * MXBeanとして公開する。計数はセッションごとのLongAdderで行うので、
+ * 実行スレッド間で競合しない。集計は読み出し時に、稼働中のセッションと
+ * 終了したセッションの合計から計算する。
+ * </p>
+ * <p>
+ * 実行コマンド数はstep()ごとにまとめて加算される。入力待ちの時間は、入力待ちで
+ * step()が戻ってから次に呼び出されるまでの実時間、時間待ちの時間は
+ * シミュレータの時計での待ち時間である。
+ * </p>
+ */
+public class Metrics {
+
+  /** MBeanのドメイン */
+  public static final String DOMAIN = "com.cm55.phl.sim";
+
+  /** セッションの値 */
+  public interface SessionMXBean {
+    long getInstructions();
+    double getInstructionsPerSecond();
+    long getInputBlockedMillis();
+    long getWaitMillis();
+    long getFileReads();
+    long getFileWrites();
+    long getFileCreates();
+    long getFileDeletes();
+    long getMasterSearches();
+    long getMasterSearchProbes();
+    long getFrameBufferEvents();
+  }
+
+  /** 集計の値 */
+  public interface AggregateMXBean extends SessionMXBean {
+    int getLiveSessions();
+  }
+
+  /** 稼働中のセッション */
+  protected final Set<Session>sessions =
+    Collections.newSetFromMap(new ConcurrentHashMap<Session,Boolean>());
+
+  /** 終了したセッションの合計 */
+  protected final Counters retired = new Counters();
+
+  /** 集計 */
+  protected final Aggregate aggregate = new Aggregate();
+
+  /** セッション名の番号 */
+  private final AtomicInteger sequence = new AtomicInteger();
+
+  /** MBeanを登録するか */
+  protected final boolean publish;
+
+  /** MBeanを登録して作成する。集計は「DOMAIN:type=Simulators」となる */
+  public Metrics() {
+    this(true);
+  }
+
+  /** MBeanを登録するかを指定して作成する */
+  public Metrics(boolean publish) {
+    this.publish = publish;
+    if (publish) register(aggregate, objectName("type=Simulators"));
+  }
+
+  /** 集計を取得する */
+  public AggregateMXBean aggregate() {
+    return aggregate;
+  }
+
+  /**
+   * シミュレータの計数を開始する。nameがnullの場合は番号を付ける。
+   * MBeanは「DOMAIN:type=Session,name=名前」となる
+   */
+  public Session attach(Simulator sim, String name) {
+    if (name == null) name = "session-" + sequence.incrementAndGet();
+    Session session = new Session(this, sim, name);
+    sim.fileArea.addListener(session);
+    sim.frameBuffer.addListener(session);
+    sim.metrics = session;
+    sessions.add(session);
+    if (publish) register(session, session.objectName);
+    return session;
+  }
+
+  /** シミュレータの計数を終了し、値を終了したセッションの合計に加える */
+  public void detach(Session session) {
+    if (!sessions.remove(session)) return;
+    Simulator sim = session.sim;
+    sim.fileArea.removeListener(session);
+    sim.frameBuffer.removeListener(session);
+    if (sim.metrics == session) sim.metrics = null;
+    session.addTo(retired);
+    if (publish) unregister(session.objectName);
+  }
+
+  /** 全セッションの計数を終了し、集計のMBeanも登録を解除する */
+  public void close() {
+    for (Session session: sessions.toArray(new Session[0])) detach(session);
+    if (publish) unregister(objectName("type=Simulators"));
+  }
+
+  private static ObjectName objectName(String properties) {
+    try {
+      return new ObjectName(DOMAIN + ":" + properties);
+    } catch (MalformedObjectNameException ex) {
+      throw new SimulateException("MBean名が不正です：" + properties, ex);
+    }
+  }
+
+  private static void register(Object bean, ObjectName name) {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      if (server.isRegistered(name)) server.unregisterMBean(name);
+      server.registerMBean(bean, name);
+    } catch (JMException ex) {
+      throw new SimulateException("MBeanを登録できません：" + name, ex);
+    }
+  }
+
+  private static void unregister(ObjectName name) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    } catch (JMException ex) {
+      // 登録されていない
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // 計数
+  /////////////////////////////////////////////////////////////////////////////
+
+  /** 計数の集まり */
+  protected static class Counters {
+    final LongAdder instructions = new LongAdder();
+    final LongAdder inputBlockedNanos = new LongAdder();
+    final LongAdder waitMillis = new LongAdder();
+    final LongAdder fileReads = new LongAdder();
+    final LongAdder fileWrites = new LongAdder();
+    final LongAdder fileCreates = new LongAdder();
+    final LongAdder fileDeletes = new LongAdder();
+    final LongAdder masterSearches = new LongAdder();
+    final LongAdder masterSearchProbes = new LongAdder();
+    final LongAdder frameBufferEvents = new LongAdder();
+
+    /** 値を他方に加える */
+    void addTo(Counters c) {
+      c.instructions.add(instructions.sum());
+      c.inputBlockedNanos.add(inputBlockedNanos.sum());
+      c.waitMillis.add(waitMillis.sum());
+      c.fileReads.add(fileReads.sum());
+      c.fileWrites.add(fileWrites.sum());
+      c.fileCreates.add(fileCreates.sum());
+      c.fileDeletes.add(fileDeletes.sum());
+      c.masterSearches.add(masterSearches.sum());
+      c.masterSearchProbes.add(masterSearchProbes.sum());
+      c.frameBufferEvents.add(frameBufferEvents.sum());
+    }
+  }
+
+  /** 毎秒の実行コマンド数を、前回の読み出しからの差分で計算する */
+  protected static class Rate {
+    private long lastCount;
+    private long lastNanos = System.nanoTime();
+    synchronized double update(long count) {
+      long now = System.nanoTime();
+      double result = now == lastNanos? 0:(count - lastCount) * 1e9 / (now - lastNanos);
+      lastCount = count;
+      lastNanos = now;
+      return result;
+    }
+  }
+
+  /** セッションの計数 */
+  public static class Session extends Counters implements SessionMXBean,
+      FileArea.Listener, FrameBuffer.Listener {
+
+    /** 所属するメトリクス */
+    final Metrics owner;
+
+    /** 対象シミュレータ */
+    public final Simulator sim;
+
+    /** セッション名 */
+    public final String name;
+
+    final ObjectName objectName;
+
+    private final Rate rate = new Rate();
+
+    /** 入力待ちになった時刻(ns)。待っていなければ0 */
+    private long blockedSince;
+
+    Session(Metrics owner, Simulator sim, String name) {
+      this.owner = owner;
+      this.sim = sim;
+      this.name = name;
+      objectName = objectName("type=Session,name=" + ObjectName.quote(name));
+    }
+
+    /** 計数を終了する。Metrics.detach()と同じ */
+    public void close() {
+      owner.detach(this);
+    }
+
+    /** step()の開始 */
+    void stepping() {
+      if (blockedSince != 0) {
+        inputBlockedNanos.add(System.nanoTime() - blockedSince);
+        blockedSince = 0;
+      }
+    }
+
+    /** step()の終了 */
+    void stepped(long count, Simulator.Status status) {
+      instructions.add(count);
+      if (status == Simulator.Status.WAITING_INPUT) blockedSince = System.nanoTime();
+    }
+
+    /** 時間待ちの終了 */
+    void waited(long millis) {
+      waitMillis.add(millis);
+    }
+
+    /** マスタ検索 */
+    void masterSearched(int probes) {
+      masterSearches.increment();
+      masterSearchProbes.add(probes);
+    }
+
+    @Override
+    public void accessed(MemoryFile file, boolean write) {
+      (write? fileWrites:fileReads).increment();
+    }
+
+    @Override
+    public void created(MemoryFile file) {
+      fileCreates.increment();
+    }
+
+    @Override
+    public void deleting(MemoryFile file, int index) {
+      fileDeletes.increment();
+    }
+
+    @Override
+    public void changed(FBRect rect) {
+      frameBufferEvents.increment();
+    }
+
+    public long getInstructions() { return instructions.sum(); }
+    public double getInstructionsPerSecond() { return rate.update(instructions.sum()); }
+    public long getInputBlockedMillis() { return inputBlockedNanos.sum() / 1000000; }
+    public long getWaitMillis() { return waitMillis.sum(); }
+    public long getFileReads() { return fileReads.sum(); }
+    public long getFileWrites() { return fileWrites.sum(); }
+    public long getFileCreates() { return fileCreates.sum(); }
+    public long getFileDeletes() { return fileDeletes.sum(); }
+    public long getMasterSearches() { return masterSearches.sum(); }
+    public long getMasterSearchProbes() { return masterSearchProbes.sum(); }
+    public long getFrameBufferEvents() { return frameBufferEvents.sum(); }
+  }
+
+  /** 全セッションの集計 */
+  protected class Aggregate implements AggregateMXBean {
+
+    private final Rate rate = new Rate();
+
+    /** 稼働中と終了したセッションの合計 */
+    private Counters total() {
+      Counters total = new Counters();
+      retired.addTo(total);
+      for (Session session: sessions) session.addTo(total);
+      return total;
+    }
+
+    public int getLiveSessions() { return sessions.size(); }
+    public long getInstructions() { return total().instructions.sum(); }
+    public double getInstructionsPerSecond() { return rate.update(getInstructions()); }
+    public long getInputBlockedMillis() { return total().inputBlockedNanos.sum() / 1000000; }
+    public long getWaitMillis() { return total().waitMillis.sum(); }
+    public long getFileReads() { return total().fileReads.sum(); }
+    public long getFileWrites() { return total().fileWrites.sum(); }
+    public long getFileCreates() { return total().fileCreates.sum(); }
+    public long getFileDeletes() { return total().fileDeletes.sum(); }
+    public long getMasterSearches() { return total().masterSearches.sum(); }
+    public long getMasterSearchProbes() { return total().masterSearchProbes.sum(); }
+    public long getFrameBufferEvents() { return total().frameBufferEvents.sum(); }
+  }
+}
@@ -0,0 +1,197 @@
+package com.cm55.phl.sim;
+
+import java.io.*;
+import java.util.*;
+
+import com.cm55.phl.*;
+import com.cm55.phl.Command.*;
+import com.cm55.phl.PHL.*;
+import com.cm55.phl.sim.LinkedCode.*;
+
+/**
+ * 実行プロファイラ
+ * <p>
+ * コマンドインデックスごとに実行回数と実行時間を集計する。
+ * Simulator.setProfiler()で設定すると、リンク済みコードの全ノードが計測ノードで
+ * 包まれる。設定していない場合のノード配列は通常どおりなので、実行には
+ * 一切影響しない。計測中は、コマンド単位で計測するために融合命令とブロック
+ * コンパイルは使用されない。入力待ちの時間は含まれない。
+ * </p>
+ * <p>
+ * コマンド種類ごと、ラベル区間（あるラベルから次のラベルの前まで）ごとの集計は
+ * 出力時に行う。
+ * </p>
+ */
+public class Profiler {
+
+  /** 対象コード */
+  protected final HTCCode code;
+
+  /** 実行回数。コマンドインデックスでインデックスされる */
+  protected final long[]counts;
+
+  /** 実行時間(ns) */
+  protected final long[]nanos;
+
+  /** 各コマンドを含むラベル区間の名前 */
+  protected final String[]regions;
+
+  /** 対象コードを指定して作成する */
+  public Profiler(HTCCode code) {
+    this.code = code;
+    counts = new long[code.numCommands()];
+    nanos = new long[code.numCommands()];
+    regions = new String[code.numCommands()];
+    String region = "L-";
+    for (int i = 0; i < regions.length; i++) {
+      Command command = code.getCommand(i);
+      if (command instanceof Label) region = "L" + ((Label)command).getNumber();
+      regions[i] = region;
+    }
+  }
+
+  /** リンク済みコードのノードを計測ノードで包む */
+  void install(LinkedCode linked) {
+    if (linked.code != code) throw new SimulateException("プロファイラのコードが異なります");
+    Node[]nodes = linked.nodes;
+    for (int i = 0; i < nodes.length; i++) nodes[i] = new ProbeNode(nodes[i]);
+  }
+
+  /** 計測値をクリアする */
+  public void clear() {
+    Arrays.fill(counts, 0);
+    Arrays.fill(nanos, 0);
+  }
+
+  /** 実行回数を取得する */
+  public long count(int index) {
+    return counts[index];
+  }
+
+  /** 実行時間(ns)を取得する */
+  public long nanos(int index) {
+    return nanos[index];
+  }
+
+  /** 計測ノード */
+  class ProbeNode extends WrapperNode {
+    ProbeNode(Node original) {
+      super(original);
+    }
+    @Override
+    public int execute(Simulator sim, int pc) {
+      long start = System.nanoTime();
+      int next = original.execute(sim, pc);
+      nanos[pc] += System.nanoTime() - start;
+      if (sim.status == Simulator.Status.RUNNING) counts[pc]++;
+      return next;
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // 集計
+  /////////////////////////////////////////////////////////////////////////////
+
+  /** 集計結果の一行 */
+  public static class Entry {
+
+    /** 名前 */
+    public final String name;
+
+    /** 実行回数 */
+    public long count;
+
+    /** 実行時間(ns) */
+    public long nanos;
+
+    Entry(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%12d %10d %8.1f  %s", nanos / 1000, count,
+          count == 0? 0.0:(double)nanos / count, name);
+    }
+  }
+
+  /** コマンドインデックスごとの集計。実行時間の長い順 */
+  public List<Entry> byCommand() {
+    List<Entry>list = new ArrayList<Entry>();
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] == 0 && nanos[i] == 0) continue;
+      Entry entry = new Entry(i + ":" + code.getCommand(i));
+      entry.count = counts[i];
+      entry.nanos = nanos[i];
+      list.add(entry);
+    }
+    return sorted(list);
+  }
+
+  /** コマンド種類ごとの集計。実行時間の長い順 */
+  public List<Entry> byCmd() {
+    EnumMap<Cmd,Entry>map = new EnumMap<Cmd,Entry>(Cmd.class);
+    for (int i = 0; i < counts.length; i++) {
+      Cmd cmd = code.getCommand(i).cmd;
+      Entry entry = map.get(cmd);
+      if (entry == null) map.put(cmd, entry = new Entry(cmd.name()));
+      entry.count += counts[i];
+      entry.nanos += nanos[i];
+    }
+    return sorted(new ArrayList<Entry>(map.values()));
+  }
+
+  /** ラベル区間ごとの集計。実行時間の長い順 */
+  public List<Entry> byLabel() {
+    Map<String,Entry>map = new LinkedHashMap<String,Entry>();
+    for (int i = 0; i < counts.length; i++) {
+      String name = regions[i];
+      Entry entry = map.get(name);
+      if (entry == null) map.put(name, entry = new Entry(name));
+      entry.count += counts[i];
+      entry.nanos += nanos[i];
+    }
+    return sorted(new ArrayList<Entry>(map.values()));
+  }
+
+  private static List<Entry> sorted(List<Entry>list) {
+    Iterator<Entry>it = list.iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.count == 0 && entry.nanos == 0) it.remove();
+    }
+    Collections.sort(list, (a, b)->Long.compare(b.nanos, a.nanos));
+    return list;
+  }
+
+  /** レポートを出力する。コマンドごとは上位limit個まで */
+  public void report(PrintStream out, int limit) {
+    String header = String.format("%12s %10s %8s  %s", "time(us)", "count", "ns/exec", "");
+    out.println("[コマンド種類]");
+    out.println(header);
+    for (Entry entry: byCmd()) out.println(entry);
+    out.println("[ラベル区間]");
+    out.println(header);
+    for (Entry entry: byLabel()) out.println(entry);
+    out.println("[コマンド]");
+    out.println(header);
+    List<Entry>list = byCommand();
+    for (Entry entry: list.subList(0, Math.min(limit, list.size()))) out.println(entry);
+  }
+
+  /**
+   * フレームグラフ用のcollapsed stack形式で出力する。
+   * 「タイトル;ラベル区間;コマンド種類@インデックス 実行時間(ns)」の形式
+   */
+  public void writeCollapsed(Writer writer) throws IOException {
+    Title title = code.getTitle();
+    String root = title == null? "HTC":title.title.toString().trim().replace(';', '_');
+    PrintWriter out = new PrintWriter(writer);
+    for (int i = 0; i < counts.length; i++) {
+      if (nanos[i] == 0) continue;
+      out.println(root + ";" + regions[i] + ";" + code.getCommand(i).cmd + "@" + i +
+          " " + nanos[i]);
+    }
+    out.flush();
+  }
+}
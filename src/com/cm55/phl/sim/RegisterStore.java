@@ -1,30 +1,130 @@
 // Created by Cryptomedia Co., Ltd. 2006/06/09
 package com.cm55.phl.sim;
 
-import java.text.*;
-import java.util.*;
 
 import com.cm55.phl.*;
 import com.cm55.phl.PHL.*;
 
 /**
  * レジスタ値ストア
+ * <p>
+ * 値はレジスタのordinalでインデックスされる配列に保持する。整数、実数は
+ * プリミティブのまま保持し、getInt()、setInt()などの型付きアクセサでは
+ * ボクシングは発生しない。文字列はSJISが不変であるので、その参照を保持する。
+ * 未設定のレジスタの値は0あるいは空文字列であり、新たなオブジェクトは作成しない。
+ * </p>
  */
 public class RegisterStore extends Listenable {
 
-  protected EnumMap<Register,Object>valueMap =
-    new EnumMap<Register,Object>(Register.class);
+  /** 全レジスタ */
+  private static final Register[]REGISTERS = Register.values();
+
+  /** レジスタ数 */
+  private static final int NUM_REGISTERS = REGISTERS.length;
+
+  /** 空文字列 */
+  private static final SJIS EMPTY = new SJIS(0);
+
+  /** 実数の0 */
+  private static final Float FLOAT_ZERO = Float.valueOf(0f);
+
+  /** 整数レジスタの値 */
+  protected final int[]ints = new int[NUM_REGISTERS];
+
+  /** 実数レジスタの値 */
+  protected final float[]floats = new float[NUM_REGISTERS];
+
+  /** 文字列レジスタの値。未設定はnull */
+  protected final SJIS[]strings = new SJIS[NUM_REGISTERS];
+
+  /** 値が設定されているか */
+  protected final boolean[]assigned = new boolean[NUM_REGISTERS];
+
+  /** 日付時刻レジスタの時計 */
+  protected SimClock clock = SimClock.SYSTEM;
+
+  /** 日付時刻レジスタの値 */
+  protected TimeRegisters timeRegisters = TimeRegisters.DEFAULT;
+
+  /** 日付時刻レジスタの現在の秒の値。複製には引き継がない */
+  private TimeRegisters.Values timeValues;
+
+  /** 日付時刻レジスタの値の作成元を設定する。タイムゾーンを変える場合など */
+  public void setTimeRegisters(TimeRegisters timeRegisters) {
+    this.timeRegisters = timeRegisters;
+  }
+
+  /** 時計を設定する */
+  public void setClock(SimClock clock) {
+    this.clock = clock;
+  }
+
+  /** 時計を取得する */
+  public SimClock getClock() {
+    return clock;
+  }
+
+  /** 値の複製を作成する。リスナーは複製しない */
+  public RegisterStore copy() {
+    RegisterStore store = new RegisterStore();
+    System.arraycopy(ints, 0, store.ints, 0, NUM_REGISTERS);
+    System.arraycopy(floats, 0, store.floats, 0, NUM_REGISTERS);
+    System.arraycopy(strings, 0, store.strings, 0, NUM_REGISTERS);
+    System.arraycopy(assigned, 0, store.assigned, 0, NUM_REGISTERS);
+    store.clock = clock;
+    store.timeRegisters = timeRegisters;
+    return store;
+  }
+
+  /** 複製の値で置き換える。値の変わったレジスタを通知する */
+  void restoreFrom(RegisterStore store) {
+    for (int i = 0; i < NUM_REGISTERS; i++)
+      restore(i, store.ints[i], store.floats[i], store.strings[i], store.assigned[i]);
+  }
+
+  /** 一つのレジスタの値を戻す。値が変わった場合は通知する */
+  void restore(int index, int intValue, float floatValue, SJIS string, boolean isAssigned) {
+    if (ints[index] == intValue &&
+        Float.floatToIntBits(floats[index]) == Float.floatToIntBits(floatValue) &&
+        strings[index] == string && assigned[index] == isAssigned) return;
+    ints[index] = intValue;
+    floats[index] = floatValue;
+    strings[index] = string;
+    assigned[index] = isAssigned;
+    fireChanged(REGISTERS[index]);
+  }
+
+  /** 全レジスタの値のハッシュ値。状態の同一性の判定に用いる */
+  public long contentHash() {
+    long h = 0;
+    for (int i = 0; i < NUM_REGISTERS; i++) {
+      if (!assigned[i]) continue;
+      h = h * 31 + i;
+      h = h * 1000003 + ints[i];
+      h = h * 1000003 + Float.floatToIntBits(floats[i]);
+      if (strings[i] != null) h = h * 1000003 + strings[i].hashCode();
+    }
+    return h;
+  }
 
   /** ユーザレジスタの初期化 */
   public void initValue(Register register) {
     assert(!register.system());
-    valueMap.remove(register);
+    clear(register.ordinal());
   }
 
   /** システムレジスタの初期化 */
   public void initSystem(Register register) {
     assert(register.system());
-    valueMap.remove(register);
+    clear(register.ordinal());
+  }
+
+  /** 未設定状態にする */
+  private void clear(int index) {
+    assigned[index] = false;
+    ints[index] = 0;
+    floats[index] = 0;
+    strings[index] = null;
   }
 
   /** ユーザレジスタへ設定 */
@@ -39,26 +139,100 @@ public class RegisterStore extends Listenable {
     doSetValue(register, value);
   }
 
+  /** 整数のユーザレジスタへ設定 */
+  public void setInt(Register register, int value) {
+    assert(!register.system());
+    doSetInt(register, value);
+  }
+
+  /** 整数のシステムレジスタへ設定 */
+  public void setSystemInt(Register register, int value) {
+    assert(register.system());
+    doSetInt(register, value);
+  }
+
+  /** 実数のユーザレジスタへ設定 */
+  public void setFloat(Register register, float value) {
+    assert(!register.system());
+    assert(register.type() == Type.FLOAT);
+    int index = register.ordinal();
+    floats[index] = value;
+    assigned[index] = true;
+    fireChanged(register);
+  }
+
+  /** 整数の設定 */
+  protected void doSetInt(Register register, int value) {
+    assert(register.type() == Type.INTEGER);
+    int index = register.ordinal();
+    ints[index] = value;
+    assigned[index] = true;
+    fireChanged(register);
+  }
+
   /** 値の設定 */
   protected void doSetValue(Register register, Object value) {
+    Type type = register.type();
     if (value instanceof String) {
       // 文字列の場合は設定先変数の型に変換
-      value = register.type().convert(value);
-    } else {
+      value = type.convert(value);
+    } else if (value != null) {
       // 文字列でない場合
       // その値は設定先変数の型と一致していなくてはいけない。
-      switch (register.type()) {
-      case STRING: assert(value instanceof SJIS); break;
-      case INTEGER: assert(value instanceof Integer); break;
-      case FLOAT: assert(value instanceof Float); break;
+      assert(type.isCompatible(value));
+    }
+    int index = register.ordinal();
+    if (value == null) {
+      clear(index);
+    } else {
+      switch (type) {
+      case STRING: strings[index] = (SJIS)value; break;
+      case INTEGER: ints[index] = (Integer)value; break;
+      case FLOAT: floats[index] = (Float)value; break;
       }
+      assigned[index] = true;
     }
-    if (value == null) valueMap.remove(register);
-    else               valueMap.put(register, value);
 
     fireChanged(register);
   }
 
+  /** 整数レジスタの値を取得する */
+  public int getInt(Register register) {
+    if (register.system()) {
+      Object object = getSystemValue(register);
+      if (object != null) return ((Number)object).intValue();
+    }
+    return ints[register.ordinal()];
+  }
+
+  /** 実数レジスタの値を取得する */
+  public float getFloat(Register register) {
+    return floats[register.ordinal()];
+  }
+
+  /** 文字列レジスタの値を取得する */
+  public SJIS getSJIS(Register register) {
+    if (register.system()) {
+      Object object = getSystemValue(register);
+      if (object != null) return Type.STRING.convert(object);
+    }
+    SJIS value = strings[register.ordinal()];
+    return value == null? EMPTY:value;
+  }
+
+  /** 文字列レジスタのバイト列の長さを取得する */
+  public int length(Register register) {
+    return getSJIS(register).length();
+  }
+
+  /** 文字列レジスタのバイト列を指定配列にコピーし、その長さを返す */
+  public int getBytes(Register register, byte[]dst, int dstPos) {
+    SJIS value = getSJIS(register);
+    int length = value.length();
+    for (int i = 0; i < length; i++) dst[dstPos + i] = value.byteAt(i);
+    return length;
+  }
+
 
   /** 変数の値を取得する */
   @SuppressWarnings("unchecked")
@@ -69,82 +243,54 @@ public class RegisterStore extends Listenable {
       if (object != null) return object;
     }
 
-    Object object = valueMap.get(register);
-    if (object == null) {
-      switch (register.type()) {
-      case STRING: return (T)new SJIS(0);
-      case INTEGER: return (T)new Integer(0);
-      case FLOAT: return (T)new Float(0);
-      default:
-        assert(false);
-      }
+    int index = register.ordinal();
+    switch (register.type()) {
+    case STRING:
+      SJIS value = strings[index];
+      return (T)(value == null? EMPTY:value);
+    case INTEGER:
+      return (T)Integer.valueOf(ints[index]);
+    case FLOAT:
+      return (T)(assigned[index]? Float.valueOf(floats[index]):FLOAT_ZERO);
+    default:
+      assert(false);
+      return null;
     }
-    return (T)object;
-  }
-
-  /** 日付レジスタフォーマット */
-  private static final EnumMap<Register,String>dateFormats = new EnumMap<Register,String>(
-      Utils.getMap(Register.class, String.class,
-          Register.DATE1, "yyyy/MM/dd",
-          Register.DATE2, "yyyyMMdd",
-          Register.DATE3, "yyyy/MM",
-          Register.DATE4, "yyyyMM",
-          Register.DATE5, "MM/dd",
-          Register.DATE6, "MMdd",
-          Register.DATE7, "dd/MM/yyyy",
-          Register.DATE8, "ddMMyyyy",
-          Register.DATE9, "MM/yyyy",
-          Register.DATEA, "MMyyyy",
-          Register.DATEB, "dd/MM",
-          Register.DATEC, "ddMM",
-          Register.DATED, "yyMMdd"
-      )
-  );
-
-  /** 時刻レジスタフォーマット */
-  private static final EnumMap<Register,String>timeFormats = new EnumMap<Register,String>(
-      Utils.getMap(Register.class, String.class,
-          Register.TIME1, "HH:mm:ss",
-          Register.TIME2, "HHmmss",
-          Register.TIME3, "HH:mm",
-          Register.TIME4, "HHmm"
-      )
-  );
+  }
 
   /** システム変数の値を取得する */
   @SuppressWarnings("unchecked")
   protected <T> T getSystemValue(Register register) {
-    EnumMap<Register,String>a;
 
     // DATE?, TIME?
     if (Register.dateTimeSet.contains(register)) {
-      String format = dateFormats.get(register);
-      if (format == null) format = timeFormats.get(register);
-      if (format == null) throw new SimulateException();
-      T result = (T)new SimpleDateFormat(format).format(new Date());
-      return result;
+      timeValues = timeRegisters.values(timeValues, clock.millis());
+      return (T)TimeRegisters.get(timeValues, register);
     }
 
     // BST?
     if (Register.bstSet.contains(register)) {
-      return (T)new Integer(1);
+      return (T)Integer.valueOf(1);
     }
 
     // BRCOD
     if (register == Register.BRCOD) {
-      if (!valueMap.containsKey(register))
-        return (T)new Integer(3); // WPC?
+      if (!assigned[register.ordinal()])
+        return (T)Integer.valueOf(3); // WPC?
     }
 
     return null;
   }
 
   protected void fireChanged(Register register) {
-    for (Listener l: getListeners(new Listener[0])) {
+    if (!hasListeners()) return;
+    for (Listener l: getListeners(NO_LISTENERS)) {
       l.changed(register);
     }
   }
 
+  private static final Listener[]NO_LISTENERS = new Listener[0];
+
   public interface Listener {
     void changed(Register register);
   }
@@ -0,0 +1,350 @@
+package com.cm55.phl.sim;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import com.cm55.phl.PHL.*;
+import com.cm55.phl.sim.Simulator.*;
+
+/**
+ * 入力スクリプトの再生
+ * <p>
+ * 記録された操作（キー、バーコード、時間経過）をシミュレータに与え、
+ * チェックポイントで画面とレジスタを検査する。シミュレータは仮想時計で実行され、
+ * 入力待ちになった時点で次の行が処理されるので、実時間の待ちはない。
+ * スクリプトの途中でプログラムが終了した場合は、残りの行はすべて失敗となる。
+ * </p>
+ * <p>
+ * スクリプトは一行一命令で、先頭の一文字が命令を表す。
+ * </p>
+ * <pre>
+ * # コメント
+ * K 1 2 ENT F1    キー。Keyの名前(ENT, F1, BS, CLR, Trigger, Q1, Q2など)でなければ各文字を入力
+ * B 4901234567890 バーコード。各文字を入力し、最後にENT
+ * &#064; 1500          経過時間(ms)。仮想時計を進める
+ * S 1 1:INPUT     画面チェック。指定行の内容（右側の空白を除く）
+ * R INT2 1        レジスタチェック。値の文字列（右側の空白を除く）
+ * </pre>
+ */
+public class Replay {
+
+  /** 一回のstep()で実行するコマンド数 */
+  protected static final int QUANTUM = 100000;
+
+  /** 入力待ちにならずに実行できるコマンド数の上限 */
+  protected long maxInstructions = 100000000L;
+
+  /** シミュレータの作成 */
+  protected final Supplier<Simulator>factory;
+
+  /** シミュレータの作成方法を指定する。セッションごとに新しいものを作成すること */
+  public Replay(Supplier<Simulator>factory) {
+    this.factory = factory;
+  }
+
+  /** 入力待ちにならずに実行できるコマンド数の上限を設定する */
+  public void setMaxInstructions(long value) {
+    maxInstructions = value;
+  }
+
+  /** スクリプトを一つ再生する */
+  public Result run(Script script) {
+    return run(script, factory.get());
+  }
+
+  /** 指定シミュレータでスクリプトを再生する */
+  public Result run(Script script, Simulator sim) {
+    Result result = new Result(script.name);
+    SimClock.Virtual clock = new SimClock.Virtual(0);
+    sim.setClock(clock);
+    long start = System.nanoTime();
+    try {
+      for (int i = 0; i < script.lines.size(); i++) {
+        Line line = script.lines.get(i);
+        if (!runUntilInput(sim, result)) {
+          for (Line rest: script.lines.subList(i, script.lines.size())) result.notRun(rest);
+          break;
+        }
+        switch (line.op) {
+        case 'K':
+        case 'B':
+          sim.setCharacters(line.keys);
+          break;
+        case '@':
+          clock.advance(line.number);
+          break;
+        case 'S': {
+          String actual = rtrim(sim.frameBuffer.getRow(line.number).toString());
+          if (!actual.equals(line.text))
+            result.fail(line, "画面" + line.number + "行 [" + actual + "]");
+          break;
+        }
+        case 'R': {
+          Object value = sim.regStore.getValue(line.register);
+          String actual = rtrim(String.valueOf(value));
+          if (!actual.equals(line.text))
+            result.fail(line, line.register + " [" + actual + "]");
+          break;
+        }
+        default:
+          break;
+        }
+      }
+      runUntilInput(sim, result);
+    } catch (RuntimeException ex) {
+      result.error = ex;
+    } finally {
+      sim.terminate();
+    }
+    result.nanos = System.nanoTime() - start;
+    result.instructions = sim.getInstructionCount();
+    return result;
+  }
+
+  /** 入力待ちになるまで実行する。終了した場合はfalseを返す */
+  protected boolean runUntilInput(Simulator sim, Result result) {
+    long limit = sim.getInstructionCount() + maxInstructions;
+    while (true) {
+      switch (sim.step(QUANTUM)) {
+      case WAITING_INPUT:
+        if (!sim.hasInput()) return true;
+        break;
+      case TERMINATED:
+        return false;
+      case WAITING_TIMER:
+        // 仮想時計では発生しない。サブクラスが時計を置き換えた場合のみ
+        sim.awaitTimer();
+        break;
+      default:
+        if (sim.getInstructionCount() > limit)
+          throw new SimulateException("入力待ちになりません pc:" + sim.getPc());
+        break;
+      }
+    }
+  }
+
+  /** 複数のスクリプトを指定スレッド数で並列に再生する */
+  public List<Result> runAll(List<Script>scripts, int numThreads) {
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<Result>>futures = new ArrayList<Future<Result>>();
+      for (final Script script: scripts)
+        futures.add(executor.submit(()->run(script)));
+      List<Result>results = new ArrayList<Result>();
+      for (Future<Result>future: futures) {
+        try {
+          results.add(future.get());
+        } catch (InterruptedException ex) {
+          throw new SimulateException("再生が中断されました", ex);
+        } catch (ExecutionException ex) {
+          throw new SimulateException("再生エラー", ex.getCause());
+        }
+      }
+      return results;
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /** 結果をまとめて出力する */
+  public static void report(List<Result>results, long elapsedNanos, PrintStream out) {
+    long instructions = 0;
+    int failed = 0;
+    for (Result result: results) {
+      instructions += result.instructions;
+      if (!result.passed()) {
+        failed++;
+        out.println(result);
+      }
+    }
+    double seconds = elapsedNanos / 1e9;
+    out.println("sessions:" + results.size() + " failed:" + failed +
+        " instructions:" + instructions +
+        String.format(" time:%.3fs ips:%.0f", seconds, instructions / seconds));
+  }
+
+  private static String rtrim(String s) {
+    int end = s.length();
+    while (end > 0 && s.charAt(end - 1) <= ' ') end--;
+    return s.substring(0, end);
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // スクリプト
+  /////////////////////////////////////////////////////////////////////////////
+
+  /** スクリプト */
+  public static class Script {
+
+    /** 名前。結果の表示用 */
+    public final String name;
+
+    /** 命令行 */
+    protected final List<Line>lines = new ArrayList<Line>();
+
+    public Script(String name) {
+      this.name = name;
+    }
+
+    /** 文字列から読み込む */
+    public static Script parse(String name, String text) {
+      try {
+        return parse(name, new StringReader(text));
+      } catch (IOException ex) {
+        throw new SimulateException("スクリプト読込エラー", ex);
+      }
+    }
+
+    /** Readerから読み込む */
+    public static Script parse(String name, Reader reader) throws IOException {
+      Script script = new Script(name);
+      BufferedReader in = new BufferedReader(reader);
+      String s;
+      int lineNumber = 0;
+      while ((s = in.readLine()) != null) {
+        lineNumber++;
+        s = rtrim(s);
+        if (s.length() == 0 || s.charAt(0) == '#') continue;
+        script.lines.add(new Line(lineNumber, s));
+      }
+      return script;
+    }
+
+    /** 命令行数 */
+    public int size() {
+      return lines.size();
+    }
+  }
+
+  /** スクリプトの一行 */
+  protected static class Line {
+    final int lineNumber;
+    final char op;
+    int[]keys;
+    int number;
+    Register register;
+    String text;
+
+    Line(int lineNumber, String s) {
+      this.lineNumber = lineNumber;
+      op = s.charAt(0);
+      String arg = s.length() > 2? s.substring(2).trim():"";
+      try {
+        switch (op) {
+        case 'K':
+          keys = parseKeys(arg);
+          break;
+        case 'B': {
+          keys = new int[arg.length() + 1];
+          for (int i = 0; i < arg.length(); i++) keys[i] = arg.charAt(i);
+          keys[arg.length()] = Key.ENT.code();
+          break;
+        }
+        case '@':
+          number = Integer.parseInt(arg);
+          break;
+        case 'S': {
+          int space = arg.indexOf(' ');
+          number = Integer.parseInt(space < 0? arg:arg.substring(0, space));
+          text = space < 0? "":arg.substring(space + 1);
+          break;
+        }
+        case 'R': {
+          int space = arg.indexOf(' ');
+          register = Register.valueOf(space < 0? arg:arg.substring(0, space));
+          text = space < 0? "":arg.substring(space + 1);
+          break;
+        }
+        default:
+          throw new SimulateException("不明な命令です");
+        }
+      } catch (RuntimeException ex) {
+        throw new SimulateException("スクリプトエラー " + lineNumber + "行:" + s, ex);
+      }
+    }
+
+    private static int[]parseKeys(String arg) {
+      List<Integer>list = new ArrayList<Integer>();
+      for (String token: arg.split("\\s+")) {
+        Key key = findKey(token);
+        if (key != null) {
+          list.add(key.code());
+          continue;
+        }
+        for (int i = 0; i < token.length(); i++) list.add((int)token.charAt(i));
+      }
+      int[]keys = new int[list.size()];
+      for (int i = 0; i < keys.length; i++) keys[i] = list.get(i);
+      return keys;
+    }
+
+    /** 表示文字を持たないキーを名前から探す */
+    private static Key findKey(String token) {
+      for (Key key: Key.values()) {
+        if (!key.hasGlyph() && key.name().equals(token)) return key;
+      }
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return lineNumber + "行";
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // 結果
+  /////////////////////////////////////////////////////////////////////////////
+
+  /** 再生結果 */
+  public static class Result {
+
+    /** スクリプト名 */
+    public final String name;
+
+    /** チェックの失敗 */
+    public final List<String>failures = new ArrayList<String>();
+
+    /** 実行エラー */
+    public RuntimeException error;
+
+    /** 実行したコマンド数 */
+    public long instructions;
+
+    /** 所要時間 */
+    public long nanos;
+
+    Result(String name) {
+      this.name = name;
+    }
+
+    void fail(Line line, String message) {
+      failures.add(line + " 期待値[" + line.text + "] 実際" + message);
+    }
+
+    void notRun(Line line) {
+      failures.add(line + " プログラムが終了したため実行されません");
+    }
+
+    /** すべてのチェックが成功し、エラーがない */
+    public boolean passed() {
+      return failures.isEmpty() && error == null;
+    }
+
+    /** 秒あたりのコマンド数 */
+    public double ips() {
+      return nanos == 0? 0:instructions * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder s = new StringBuilder(name + (passed()? " OK":" NG") +
+          " instructions:" + instructions + String.format(" ips:%.0f", ips()));
+      for (String failure: failures) s.append("\n  " + failure);
+      if (error != null) s.append("\n  " + error);
+      return s.toString();
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package com.cm55.phl.sim;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+import com.cm55.phl.*;
+import com.cm55.phl.Command.*;
+import com.cm55.phl.PHL.*;
+import com.cm55.phl.gen.*;
+import com.cm55.phl.gen.Macro.*;
+
+public class ReplayTest {
+
+  private static final String SCRIPT =
+    "# 入力して確認\n" +
+    "S 0 CODE\n" +
+    "K 1 2 ENT\n" +
+    "R DAT1 12\n" +
+    "S 2 12\n" +
+    "B 345\n" +
+    "R DAT2 345\n" +
+    "R INT1 1\n";
+
+  /** すべてのチェックが成功する */
+  @Test
+  public void passed() throws IOException {
+    Replay.Result result = replay().run(Replay.Script.parse("ok", SCRIPT));
+    assertTrue(result.toString(), result.passed());
+    assertTrue(result.instructions > 0);
+  }
+
+  /** 期待値と異なるチェックが失敗になる */
+  @Test
+  public void failed() throws IOException {
+    String text = SCRIPT.replace("S 2 12", "S 2 99").replace("R INT1 1", "R INT1 2");
+    Replay.Result result = replay().run(Replay.Script.parse("ng", text));
+    assertFalse(result.passed());
+    assertEquals(2, result.failures.size());
+    assertNull(result.error);
+  }
+
+  /** プログラムが終了した後の行は失敗になる */
+  @Test
+  public void terminated() throws IOException {
+    String text = SCRIPT + "K 9\nK 8\nR INT2 57\n";
+    Replay.Result result = replay().run(Replay.Script.parse("end", text));
+    assertFalse(result.passed());
+    assertEquals(2, result.failures.size());
+  }
+
+  /** 並列に再生しても結果はスクリプトの順 */
+  @Test
+  public void runAll() throws IOException {
+    List<Replay.Script>scripts = new ArrayList<Replay.Script>();
+    for (int i = 0; i < 20; i++)
+      scripts.add(Replay.Script.parse("s" + i, i % 2 == 0? SCRIPT:SCRIPT.replace("S 2 12", "S 2 99")));
+    List<Replay.Result>results = replay().runAll(scripts, 4);
+    assertEquals(scripts.size(), results.size());
+    for (int i = 0; i < results.size(); i++) {
+      assertEquals("s" + i, results.get(i).name);
+      assertEquals(i % 2 == 0, results.get(i).passed());
+    }
+  }
+
+  /** 不明な命令はスクリプトエラー */
+  @Test(expected = SimulateException.class)
+  public void parseError() {
+    Replay.Script.parse("bad", "X 1\n");
+  }
+
+  private static Replay replay() throws IOException {
+    Object body = new Compound(
+      new DisplayClear(),
+      new DisplayString(0, 0, "CODE"),
+      new EchoedInput(1, 0, Register.DAT1, 4, EnumSet.noneOf(Key.class)),
+      new DisplayRegister(2, 0, Register.DAT1, 0, 4),
+      new WaitMS(1000),
+      new BarcodeInput(3, 0, Register.DAT2, 8, EnumSet.noneOf(Key.class)),
+      new Assign(Register.INT1, 1),
+      new NoEchoInput(Register.INT2)
+    );
+    Title title = new Title("TEST", "1.0").setStartScreen(StartScreen.NONE);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new Generator(title, body).outputHTC(out);
+    HTCCode code = new HTCCode(new ByteArrayInputStream(out.toByteArray()));
+    return new Replay(()->new Simulator(code, new FileArea(), new FrameBuffer(16, 8),
+        new RegisterStore()));
+  }
+}
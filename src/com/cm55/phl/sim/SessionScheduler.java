@@ -0,0 +1,227 @@
+package com.cm55.phl.sim;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import com.cm55.phl.sim.Simulator.*;
+
+/**
+ * シミュレータセッションのスケジューラ
+ * <p>
+ * 多数のシミュレータを、固定数のワーカースレッドで実行する。各セッションは
+ * step()で一定数ずつ実行され、入力待ちになれば入力が設定されるまで、
+ * 時間待ちになれば指定時刻まで、スレッドを占有せずに待機する。
+ * シミュレータはThreadとしては開始しないこと。
+ * </p>
+ */
+public class SessionScheduler {
+
+  /** 一回のstep()で実行するコマンド数のデフォルト */
+  public static final int DEFAULT_QUANTUM = 10000;
+
+  /** ワーカー */
+  protected final ExecutorService workers;
+
+  /** タイマー */
+  protected final ScheduledExecutorService timer;
+
+  /** 一回のstep()で実行するコマンド数 */
+  protected final int quantum;
+
+  /** 運用メトリクス。計数しない場合はnull */
+  protected volatile Metrics metrics;
+
+  /** 実行中のセッション */
+  protected final Set<Session>sessions =
+    Collections.newSetFromMap(new ConcurrentHashMap<Session,Boolean>());
+
+  /** ワーカー数を指定して作成する */
+  public SessionScheduler(int numWorkers) {
+    this(numWorkers, DEFAULT_QUANTUM);
+  }
+
+  /** ワーカー数と一回のstep()で実行するコマンド数を指定して作成する */
+  public SessionScheduler(int numWorkers, int quantum) {
+    this.quantum = quantum;
+    workers = Executors.newFixedThreadPool(numWorkers, daemonFactory("phl-worker"));
+    timer = Executors.newSingleThreadScheduledExecutor(daemonFactory("phl-timer"));
+  }
+
+  private static ThreadFactory daemonFactory(final String name) {
+    final AtomicInteger count = new AtomicInteger();
+    return r-> {
+      Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /** 運用メトリクスを設定する。以降に登録されたセッションが計数される */
+  public void setMetrics(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /** シミュレータをセッションとして登録し、実行を開始する */
+  public Session submit(Simulator sim) {
+    Session session = new Session(sim);
+    Metrics m = metrics;
+    if (m != null) session.metrics = m.attach(sim, null);
+    sessions.add(session);
+    sim.setWaker(session);
+    session.scheduled.set(true);
+    workers.execute(session);
+    return session;
+  }
+
+  /** 実行中のセッション数を取得する */
+  public int liveSessions() {
+    return sessions.size();
+  }
+
+  /** すべてのセッションを中断し、スケジューラを終了する */
+  public void shutdown() {
+    for (Session session: sessions.toArray(new Session[0]))
+      session.sim.terminate();
+    workers.shutdown();
+    timer.shutdownNow();
+  }
+
+  /**
+   * セッション
+   * <p>
+   * scheduledがtrueの間は、ワーカーのキューにあるか実行中である。
+   * 待ち状態になるとfalseにし、再開通知でtrueにしたものだけがキューに入れる。
+   * falseにした後で再開条件を確認し直すので、その間に届いた通知も失われない。
+   * </p>
+   */
+  public class Session implements Runnable, Waker {
+
+    /** シミュレータ */
+    public final Simulator sim;
+
+    /** ワーカーのキューにあるか実行中 */
+    final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /** 終了待ち */
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    /** 実行中に発生した例外 */
+    private volatile RuntimeException error;
+
+    /** 運用メトリクスの計数。計数しない場合はnull */
+    private Metrics.Session metrics;
+
+    /** 時間待ちの再開通知。なければnull */
+    private volatile ScheduledFuture<?>timerTask;
+
+    /** timerTaskの再開時刻 */
+    private long timerWakeup;
+
+    Session(Simulator sim) {
+      this.sim = sim;
+    }
+
+    /** 終了したか */
+    public boolean isFinished() {
+      return finished.getCount() == 0;
+    }
+
+    /** 終了を待つ。終了した場合はtrueを返す */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+      return finished.await(timeout, unit);
+    }
+
+    /** 実行中に発生した例外を取得する。なければnull */
+    public RuntimeException getError() {
+      return error;
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        Status status;
+        try {
+          status = sim.step(quantum);
+        } catch (RuntimeException ex) {
+          error = ex;
+          sim.terminate();
+          status = Status.TERMINATED;
+        }
+        switch (status) {
+        case RUNNING:
+          // 他のセッションに譲る
+          execute();
+          return;
+        case TERMINATED:
+          finish();
+          return;
+        case WAITING_TIMER:
+          scheduleTimer();
+          if (!idle(()->sim.currentTimeMillis() >= sim.getWakeupTime())) return;
+          break;
+        case BREAK:
+          // Debugger.resume()による再開を待つ
+          if (!idle(()->sim.getDebugger().consumeResume())) return;
+          break;
+        case WAITING_INPUT:
+          if (!idle(sim::hasInput)) return;
+          break;
+        }
+      }
+    }
+
+    /**
+     * 待ちに入る。scheduledをfalseにしてから再開条件を確認し、既に満たされていれば
+     * scheduledをtrueに戻して続けて実行する。falseにする前に届いた再開通知は
+     * ここで拾い、後に届いたものはwake()がキューに入れる。
+     * 続けて実行する場合はtrueを返す
+     */
+    private boolean idle(BooleanSupplier ready) {
+      scheduled.set(false);
+      if (!ready.getAsBoolean() && !sim.isTerminated()) return false;
+      return scheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * 再開時刻に再開通知を行う。時間待ち中のキー入力などで再度呼び出された場合、
+     * 再開時刻が同じで通知が済んでいなければ、新たには予約しない
+     */
+    private void scheduleTimer() {
+      long wakeup = sim.getWakeupTime();
+      if (timerTask != null && !timerTask.isDone() && timerWakeup == wakeup) return;
+      if (timerTask != null) timerTask.cancel(false);
+      long delay = Math.max(0, wakeup - sim.currentTimeMillis());
+      timerWakeup = wakeup;
+      try {
+        timerTask = timer.schedule(()->wake(sim), delay, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException ex) {
+        timerTask = null;
+      }
+    }
+
+    /** 再開通知。待機中であればワーカーのキューに入れる */
+    @Override
+    public void wake(Simulator s) {
+      if (isFinished()) return;
+      if (scheduled.compareAndSet(false, true)) execute();
+    }
+
+    private void execute() {
+      try {
+        workers.execute(this);
+      } catch (RejectedExecutionException ex) {
+        finish();
+      }
+    }
+
+    private void finish() {
+      if (!sessions.remove(this)) return;
+      ScheduledFuture<?>task = timerTask;
+      if (task != null) task.cancel(false);
+      if (metrics != null) metrics.close();
+      finished.countDown();
+    }
+  }
+}
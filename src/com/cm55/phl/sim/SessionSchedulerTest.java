@@ -0,0 +1,83 @@
+package com.cm55.phl.sim;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.*;
+
+import com.cm55.phl.*;
+import com.cm55.phl.Command.*;
+import com.cm55.phl.PHL.*;
+import com.cm55.phl.gen.*;
+import com.cm55.phl.gen.Macro.*;
+
+public class SessionSchedulerTest {
+
+  /** 入力待ちに入る間際に届いた入力でも、セッションが再開される */
+  @Test(timeout = 60000)
+  public void inputWakeup() throws Exception {
+    SessionScheduler scheduler = new SessionScheduler(2);
+    try {
+      CountingSimulator sim = new CountingSimulator(code(new InfiniteLoop(
+        new NoEchoInput(Register.INT1)
+      )));
+      SessionScheduler.Session session = scheduler.submit(sim);
+      for (int i = 0; i < 20000; i++) {
+        sim.setCharacter('1');
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sim.consumed.get() <= i) {
+          assertTrue("入力が処理されない：" + i, System.currentTimeMillis() < deadline);
+          Thread.yield();
+        }
+      }
+      assertFalse(session.isFinished());
+      assertNull(session.getError());
+    } finally {
+      scheduler.shutdown();
+    }
+  }
+
+  /** 終了したセッションは取り除かれる */
+  @Test(timeout = 10000)
+  public void finish() throws Exception {
+    SessionScheduler scheduler = new SessionScheduler(1);
+    try {
+      Simulator sim = new Simulator(code(new Compound(
+        new WaitMS(20),
+        new NoEchoInput(Register.INT1)
+      )), new FileArea(), new FrameBuffer(16, 8), new RegisterStore());
+      SessionScheduler.Session session = scheduler.submit(sim);
+      sim.setCharacter('1');
+      assertTrue(session.await(5, TimeUnit.SECONDS));
+      assertNull(session.getError());
+      assertEquals(0, scheduler.liveSessions());
+      assertEquals('1', (int)sim.regStore.getValue(Register.INT1));
+    } finally {
+      scheduler.shutdown();
+    }
+  }
+
+  /** 取り出した入力を数えるシミュレータ */
+  static class CountingSimulator extends Simulator {
+    final AtomicInteger consumed = new AtomicInteger();
+    CountingSimulator(HTCCode code) {
+      super(code, new FileArea(), new FrameBuffer(16, 8), new RegisterStore());
+    }
+    @Override
+    protected int pollInput() {
+      int value = super.pollInput();
+      if (value >= 0) consumed.incrementAndGet();
+      return value;
+    }
+  }
+
+  private static HTCCode code(Object body) throws IOException {
+    Title title = new Title("TEST", "1.0").setStartScreen(StartScreen.NONE);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new Generator(title, body).outputHTC(out);
+    return new HTCCode(new ByteArrayInputStream(out.toByteArray()));
+  }
+}
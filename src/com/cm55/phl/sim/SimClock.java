@@ -0,0 +1,77 @@
+package com.cm55.phl.sim;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * シミュレータの時計
+ * <p>
+ * 時間待ちの時刻計算と、日付時刻レジスタの値に使用される。
+ * SYSTEMは実時間、Virtualは仮想時間であり、仮想時間の場合は時間待ちが
+ * 時計を進めるだけで即座に終了する。
+ * </p>
+ */
+public interface SimClock {
+
+  /** 現在時刻（エポックからのミリ秒） */
+  long millis();
+
+  /**
+   * 指定時刻まで時計を進める。進められる場合はtrueを返す。
+   * 実時間の時計では何もせずfalseを返すので、呼び出し側は実際に待つ必要がある。
+   */
+  boolean advanceTo(long time);
+
+  /**
+   * 分岐したシミュレータ用の時計を取得する。
+   * 実時間の時計はそのまま共有し、仮想時間の場合は現在時刻から独立して進む時計を作成する。
+   */
+  default SimClock fork() {
+    return this;
+  }
+
+  /** 実時間 */
+  public static final SimClock SYSTEM = new SimClock() {
+    public long millis() {
+      return System.currentTimeMillis();
+    }
+    public boolean advanceTo(long time) {
+      return false;
+    }
+  };
+
+  /** 仮想時間。明示的に進めるか、時間待ちによってのみ進む */
+  public static class Virtual implements SimClock {
+
+    /** 現在時刻 */
+    protected final AtomicLong now;
+
+    /** 開始時刻を指定して作成する */
+    public Virtual(long start) {
+      now = new AtomicLong(start);
+    }
+
+    /** 実時間の現在時刻から開始する */
+    public Virtual() {
+      this(System.currentTimeMillis());
+    }
+
+    public long millis() {
+      return now.get();
+    }
+
+    public boolean advanceTo(long time) {
+      now.accumulateAndGet(time, Math::max);
+      return true;
+    }
+
+    @Override
+    public SimClock fork() {
+      return new Virtual(now.get());
+    }
+
+    /** 指定ミリ秒進める */
+    public void advance(long ms) {
+      now.addAndGet(ms);
+    }
+  }
+}
@@ -3,4 +3,14 @@ package com.cm55.phl.sim;
 
 public class SimulateException extends RuntimeException {
 
+  public SimulateException() {
+  }
+
+  public SimulateException(String s) {
+    super(s);
+  }
+
+  public SimulateException(String s, Throwable ex) {
+    super(s, ex);
+  }
 }
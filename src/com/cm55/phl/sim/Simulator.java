@@ -1,35 +1,111 @@
 // Created by Cryptomedia Co., Ltd. 2006/06/06
 package com.cm55.phl.sim;
 
+import java.io.*;
 import java.lang.annotation.*;
-import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.locks.*;
 
 import com.cm55.phl.*;
 import com.cm55.phl.Command.*;
 import com.cm55.phl.PHL.*;
+import com.cm55.phl.gen.*;
 import com.cm55.phl.sim.FileArea.*;
 
 /**
  * PHLシミュレータ
+ * <p>
+ * 実行の本体はstep()で、指定数のコマンドを実行するか、入力待ち、時間待ちに
+ * なった時点で状態を返す。待ちになったコマンドは、プログラムカウンタを
+ * 戻しておき、再開時にもう一度実行される。その際resumingがtrueになるので、
+ * 行入力などの途中状態はフィールドに保持しておく。
+ * Threadとしてのrun()は、step()を呼び出し、待ちの間スレッドを停止させるだけの
+ * アダプタである。
+ * </p>
  */
 public class Simulator extends Thread {
 
+  /** 実行状態 */
+  public enum Status {
+    /** 実行中。指定数のコマンドを実行した */
+    RUNNING,
+    /** 入力待ち */
+    WAITING_INPUT,
+    /** 時間待ち。getWakeupTime()の時刻まで */
+    WAITING_TIMER,
+    /** 終了 */
+    TERMINATED,
+    /** デバッガのブレークポイント、ウォッチポイントで停止した */
+    BREAK;
+  }
+
   @Retention(RetentionPolicy.RUNTIME)
   @Target(ElementType.METHOD)
   public @interface MethodFor { 
     Class<? extends Command>cls();
   }
 
-  static Map<Class<? extends Command>, Method>methodMap = new HashMap<>();
+  /**
+   * コマンドハンドラ
+   * <p>
+   * 各コマンドの処理はMethodForの付いたメソッドで行われるが、実行時にはこの
+   * ハンドラを通して呼び出される。デフォルトのハンドラはそれらのメソッドを
+   * 仮想呼び出しするだけなので、サブクラスでメソッドをオーバーライドすれば
+   * そのまま有効になる。
+   * </p>
+   */
+  public interface Handler {
+    void execute(Simulator sim, Command command);
+  }
+
+  /**
+   * 待ち状態のシミュレータの再開通知
+   * <p>
+   * 入力が設定された場合、中断された場合に呼び出される。スケジューラはこれを受けて
+   * step()を再度呼び出す。
+   * </p>
+   */
+  public interface Waker {
+    void wake(Simulator sim);
+  }
+
+  /** デフォルトのハンドラテーブル。PHL.Cmd.ordinal()でインデックスされる */
+  static final Handler[]defaultHandlers = new Handler[Cmd.values().length];
   static {
-    for (Method method: Simulator.class.getDeclaredMethods()) {
-      MethodFor methodFor = method.getAnnotation(MethodFor.class);
-      if (methodFor == null) continue;
-      methodMap.put(methodFor.cls(), method);
-    }
+    defaultHandlers[Cmd.Title.ordinal()] = (sim, c)->sim.title((Title)c);
+    defaultHandlers[Cmd.Label.ordinal()] = (sim, c)->sim.label((Label)c);
+    defaultHandlers[Cmd.Jump.ordinal()] = (sim, c)->sim.jump((Jump)c);
+    defaultHandlers[Cmd.JumpIf.ordinal()] = (sim, c)->sim.jumpIf((JumpIf)c);
+    defaultHandlers[Cmd.Assign.ordinal()] = (sim, c)->sim.assign((Assign)c);
+    defaultHandlers[Cmd.StringConcat.ordinal()] = (sim, c)->sim.stringConcat((StringConcat)c);
+    defaultHandlers[Cmd.ExtractCopy.ordinal()] = (sim, c)->sim.extractCopy((ExtractCopy)c);
+    defaultHandlers[Cmd.StringShift.ordinal()] = (sim, c)->sim.stringShift((StringShift)c);
+    defaultHandlers[Cmd.NumberToString.ordinal()] = (sim, c)->sim.numberToString((NumberToString)c);
+    defaultHandlers[Cmd.VariableInit.ordinal()] = (sim, c)->sim.variableInit((VariableInit)c);
+    defaultHandlers[Cmd.RecordWrite.ordinal()] = (sim, c)->sim.recordWrite((RecordWrite)c);
+    defaultHandlers[Cmd.RecordRead.ordinal()] = (sim, c)->sim.recordRead((RecordRead)c);
+    defaultHandlers[Cmd.RecordCount.ordinal()] = (sim, c)->sim.recordCount((RecordCount)c);
+    defaultHandlers[Cmd.FileDelete.ordinal()] = (sim, c)->sim.fileDelete((FileDelete)c);
+    defaultHandlers[Cmd.FileExists.ordinal()] = (sim, c)->sim.fileExists((FileExists)c);
+    defaultHandlers[Cmd.MasterSearch.ordinal()] = (sim, c)->sim.masterSearch((MasterSearch)c);
+    defaultHandlers[Cmd.EchoedInput.ordinal()] = (sim, c)->sim.echoedInput((EchoedInput)c);
+    defaultHandlers[Cmd.BarcodeInput.ordinal()] = (sim, c)->sim.barcodeInput((BarcodeInput)c);
+    defaultHandlers[Cmd.BarcodeInfo.ordinal()] = (sim, c)->sim.barcodeInfo((BarcodeInfo)c);
+    defaultHandlers[Cmd.NoEchoInput.ordinal()] = (sim, c)->sim.noEchoInput((NoEchoInput)c);
+    defaultHandlers[Cmd.DisplayString.ordinal()] = (sim, c)->sim.displayString((DisplayString)c);
+    defaultHandlers[Cmd.DisplayClear.ordinal()] = (sim, c)->sim.displayClear((DisplayClear)c);
+    defaultHandlers[Cmd.DisplayPartClear.ordinal()] = (sim, c)->sim.displayPartClear((DisplayPartClear)c);
+    defaultHandlers[Cmd.DisplayRegister.ordinal()] = (sim, c)->sim.displayRegister((DisplayRegister)c);
+    defaultHandlers[Cmd.CommUpload.ordinal()] = (sim, c)->sim.commUpload((CommUpload)c);
+    defaultHandlers[Cmd.CommDownload.ordinal()] = (sim, c)->sim.commDownload((CommDownload)c);
+    defaultHandlers[Cmd.WaitMS.ordinal()] = (sim, c)->sim.waitMS((WaitMS)c);
+    for (Cmd cmd: Cmd.values())
+      assert(defaultHandlers[cmd.ordinal()] != null);
   }
 
+  /** このシミュレータのハンドラテーブル */
+  protected final Handler[]handlers = defaultHandlers.clone();
+
   /** プログラムコード */
   protected HTCCode code;
 
@@ -46,7 +122,74 @@ public class Simulator extends Thread {
   protected RegisterStore regStore;
 
   /** 中断 */
-  protected boolean terminated;
+  protected volatile boolean terminated;
+
+  /** 実行状態 */
+  protected volatile Status status = Status.RUNNING;
+
+  /** 実行したコマンド数 */
+  protected long instructionCount;
+
+  /**
+   * 実行中のstep()で実行できるコマンド数の上限。instructionCountの値。
+   * 複数のコマンドをまとめて実行するノードは、実行した分をinstructionCountに加え、
+   * 上限を超える場合はまとめずに実行する
+   */
+  long instructionLimit = Long.MAX_VALUE;
+
+  /** 待ちになったコマンドを再実行中 */
+  protected boolean resuming;
+
+  /** タイトル処理が終了した */
+  protected boolean titleDone;
+
+  /** 時計 */
+  protected SimClock clock = SimClock.SYSTEM;
+
+  /** 時間待ちの終了時刻。待っていないときは-1 */
+  protected long wakeupTime = -1;
+
+  /** 再開通知先。なければnull */
+  protected volatile Waker waker;
+
+  /** 行入力中のバッファ */
+  protected SJIS lineBuffer;
+
+  /** 行入力で、全桁入力後の1秒待ち中 */
+  protected boolean lineDelaying;
+
+  /** リンク済みコードで実行するか。falseの場合はハンドラで一つずつ解釈実行する */
+  protected boolean linking = true;
+
+  /** リンク済みコード。必要になった時点で作成される */
+  protected LinkedCode linked;
+
+  /** 融合命令を使用するか */
+  protected boolean fusing = true;
+
+  /** 融合命令。使用しない場合はnull */
+  protected SuperInstructions superInstructions;
+
+  /** プロファイラ。計測しない場合はnull */
+  protected Profiler profiler;
+
+  /** トレース。記録しない場合はnull */
+  protected Tracer tracer;
+
+  /** デバッガ。必要になった時点で作成される */
+  protected Debugger debugger;
+
+  /** 応答時間の予測。予測しない場合はnull */
+  protected LatencyMonitor latencyMonitor;
+
+  /** カバレッジ。記録しない場合はnull */
+  protected Coverage coverage;
+
+  /** 運用メトリクス。Metrics.attach()で設定される。計数しない場合はnull */
+  protected volatile Metrics.Session metrics;
+
+  /** 実行履歴。記録しない場合はnull */
+  protected TimeTravel timeTravel;
 
   /** 作成する */
   public Simulator(HTCCode code, FileArea fileArea, FrameBuffer frameBuffer,
@@ -67,70 +210,510 @@ public class Simulator extends Thread {
     return code;
   }
 
+  /** 指定コマンドのハンドラを置き換える。nullの場合はデフォルトに戻す */
+  public void setHandler(Cmd cmd, Handler handler) {
+    if (handler == null) handler = defaultHandlers[cmd.ordinal()];
+    handlers[cmd.ordinal()] = handler;
+    linked = null;
+  }
+
+  /** 指定コマンドのハンドラを取得する */
+  public Handler getHandler(Cmd cmd) {
+    return handlers[cmd.ordinal()];
+  }
+
+  /** リンク済みコードで実行するかを設定する。
+   * falseの場合はMethodForメソッドによる解釈実行となる */
+  public void setLinking(boolean value) {
+    linking = value;
+  }
+
+  /** 融合命令を使用するかを設定する。リンク済みコードで実行する場合のみ有効 */
+  public void setFusing(boolean value) {
+    fusing = value;
+    linked = null;
+  }
+
+  /** 融合命令を取得する。使用しない場合はnull */
+  public SuperInstructions getSuperInstructions() {
+    linked();
+    return superInstructions;
+  }
+
+  /** プロファイラを設定する。nullの場合は計測しない。
+   * リンク済みコードで実行する場合のみ有効で、計測中は融合命令とブロックコンパイルは使用されない */
+  public void setProfiler(Profiler profiler) {
+    this.profiler = profiler;
+    linked = null;
+  }
+
+  /** プロファイラを取得する */
+  public Profiler getProfiler() {
+    return profiler;
+  }
+
+  /** トレースを設定する。nullの場合は記録しない。
+   * リンク済みコードで実行する場合のみ有効で、記録中は融合命令とブロックコンパイルは使用されない */
+  public void setTracer(Tracer tracer) {
+    if (this.tracer != null) this.tracer.detach();
+    this.tracer = tracer;
+    if (tracer != null) tracer.attach(this);
+    linked = null;
+  }
+
+  /** トレースを取得する */
+  public Tracer getTracer() {
+    return tracer;
+  }
+
+  /** 実行履歴を設定する。nullの場合は記録しない。
+   * リンク済みコードで実行する場合のみ有効で、記録中は融合命令とブロックコンパイルは使用されない */
+  public void setTimeTravel(TimeTravel timeTravel) {
+    if (this.timeTravel != null) this.timeTravel.detach();
+    this.timeTravel = timeTravel;
+    if (timeTravel != null) timeTravel.attach(this);
+    linked = null;
+  }
+
+  /** 実行履歴を取得する */
+  public TimeTravel getTimeTravel() {
+    return timeTravel;
+  }
+
+  /** 応答時間の予測を設定する。nullの場合は予測しない。
+   * リンク済みコードで実行する場合のみ有効で、予測中は融合命令とブロックコンパイルは使用されない */
+  public void setLatencyMonitor(LatencyMonitor latencyMonitor) {
+    this.latencyMonitor = latencyMonitor;
+    linked = null;
+  }
+
+  /** 応答時間の予測を取得する */
+  public LatencyMonitor getLatencyMonitor() {
+    return latencyMonitor;
+  }
+
+  /** カバレッジを設定する。nullの場合は記録しない。
+   * リンク済みコードで実行する場合のみ有効で、記録中は融合命令とブロックコンパイルは使用されない */
+  public void setCoverage(Coverage coverage) {
+    this.coverage = coverage;
+    linked = null;
+  }
+
+  /** カバレッジを取得する */
+  public Coverage getCoverage() {
+    return coverage;
+  }
+
+  /** デバッガを取得する。なければ作成する */
+  public Debugger getDebugger() {
+    if (debugger == null) debugger = new Debugger(this);
+    return debugger;
+  }
+
+  /** 次の実行時にリンクし直す */
+  protected void relink() {
+    linked = null;
+  }
+
+  /** リンク済みコードを取得する。なければ作成する */
+  public LinkedCode linked() {
+    if (linked == null) {
+      linked = new LinkedCode(code, this);
+      superInstructions = null;
+      boolean debugging = debugger != null && debugger.isActive();
+      if (profiler != null || tracer != null || latencyMonitor != null ||
+          coverage != null || timeTravel != null || debugging) {
+        if (coverage != null) coverage.install(linked);
+        if (profiler != null) profiler.install(linked);
+        if (tracer != null) tracer.install(linked);
+        if (latencyMonitor != null) latencyMonitor.install(linked);
+        if (timeTravel != null) timeTravel.install(linked);
+        if (debugging) debugger.install(linked);
+        return linked;
+      }
+      if (fusing) superInstructions = new SuperInstructions(linked, this);
+    }
+    return linked;
+  }
+
+  /** 再開通知先を設定する */
+  public void setWaker(Waker waker) {
+    this.waker = waker;
+  }
+
+  /** 再開を通知する */
+  protected void wake() {
+    Waker w = waker;
+    if (w != null) w.wake(this);
+  }
+
   /** シミュレータを中断する */
-  public synchronized void terminate() {
+  public void terminate() {
     terminated = true;
+    status = Status.TERMINATED;
     interrupt();
+    unparkInputWaiter();
+    wake();
   }
 
-  /** コードを実行する */
-  public void run() {
+  /** 中断されたか */
+  public boolean isTerminated() {
+    return terminated;
+  }
 
-    // タイトル処理
-    title(code.getTitle());
-
-    // コマンド処理
-    while (!terminated) {
-      Command command = code.getCommand(pc++);
-      Class<? extends Command> argClass = command.cmd.clazz;
-      
-      /* if (log.ist()) {
-        log.trace("cmdstr:" + cmdstr + 
-            ", methodName:" + methodName + 
-            ", argClass:" + argClass);
+  /** 実行状態を取得する */
+  public Status getStatus() {
+    return status;
+  }
+
+  /** 時間待ちの終了時刻を取得する。時間待ちでなければ-1 */
+  public long getWakeupTime() {
+    return wakeupTime;
+  }
+
+  /** 実行したコマンド数を取得する */
+  public long getInstructionCount() {
+    return instructionCount;
+  }
+
+  /** プログラムカウンタを取得する */
+  public int getPc() {
+    return pc;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // スナップショット
+  /////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * 現在の状態のスナップショットを作成する。
+   * 実行中に呼び出してはならない。step()の合間、あるいは入力待ちの間に呼び出すこと。
+   */
+  public Snapshot snapshot() {
+    return new Snapshot(this);
+  }
+
+  /**
+   * スナップショットの状態に戻す。レジスタストア、フレームバッファ、ファイルエリアは
+   * 同じオブジェクトのまま内容が置き換えられ、リスナーはそのまま残る。
+   * 未処理の入力と時計は戻さない。実行中に呼び出してはならない。
+   */
+  public void restore(Snapshot snapshot) {
+    pc = snapshot.pc;
+    status = snapshot.status;
+    terminated = status == Status.TERMINATED;
+    instructionCount = snapshot.instructionCount;
+    resuming = snapshot.resuming;
+    titleDone = snapshot.titleDone;
+    wakeupTime = snapshot.wakeupTime;
+    lineBuffer = snapshot.lineBuffer;
+    lineDelaying = snapshot.lineDelaying;
+    regStore.restoreFrom(snapshot.regStore);
+    frameBuffer.restoreFrom(snapshot.frameBuffer);
+    fileArea.restoreFrom(snapshot.fileArea);
+  }
+
+  /**
+   * 実行中のコードを新しいコードに置き換える。レジスタストア、フレームバッファ、
+   * ファイルエリアはそのまま残る。プログラムカウンタは、直前のラベルからの
+   * 相対位置として新しいコードの同じ番号のラベルからの位置に移す。
+   * 対応するラベルがない、その位置までの間に別のラベルがある、
+   * あるいはその位置のコマンド種類が異なる場合は、何も変更せずに
+   * SimulateExceptionとする。待ちになっているコマンドを再実行する場合は、
+   * コマンドの内容まで同じでなければならない。
+   * <p>
+   * コードに依存するプロファイラとカバレッジの設定と、デバッガのブレークポイント、
+   * ウォッチポイントは破棄され、トレーサの記録、レイテンシモニタの記録と
+   * 実行履歴は捨てられる。待ち状態あるいは停止中にのみ呼び出すこと。
+   * </p>
+   */
+  public void reload(HTCCode newCode) {
+    int newPc = titleDone? mapIndex(code, newCode, pc, resuming):0;
+    code = newCode;
+    pc = newPc;
+    codeChanged();
+  }
+
+  /**
+   * 別のプログラムを最初から実行する。ファイルエリアとフレームバッファは
+   * そのまま残り、レジスタは初期状態になる。待ち状態あるいは停止中にのみ
+   * 呼び出すこと。reload()と同様に、コードに依存する設定は破棄される
+   */
+  protected void load(HTCCode newCode) {
+    code = newCode;
+    pc = 0;
+    resuming = false;
+    titleDone = false;
+    wakeupTime = -1;
+    lineBuffer = null;
+    lineDelaying = false;
+    regStore.restoreFrom(new RegisterStore());
+    codeChanged();
+  }
+
+  /** コードが置き換えられた */
+  private void codeChanged() {
+    profiler = null;
+    coverage = null;
+    if (debugger != null) debugger.reset();
+    if (tracer != null) tracer.clear();
+    if (latencyMonitor != null) latencyMonitor.clear();
+    if (timeTravel != null) timeTravel.attach(this);
+    relink();
+  }
+
+  /**
+   * コマンドインデックスを、直前のラベルからの相対位置として新しいコードに対応させる。
+   * ラベルより前であればコードの先頭からの位置とする。
+   * sameContentがtrueの場合はコマンドの内容も同じでなければならない
+   */
+  static int mapIndex(HTCCode from, HTCCode to, int index, boolean sameContent) {
+    if (index >= from.numCommands())
+      throw new SimulateException("コマンドインデックスが不正です：" + index);
+
+    // 元のコードで直前のラベル
+    int base = index;
+    while (base >= 0 && !(from.getCommand(base) instanceof Label)) base--;
+
+    // 新しいコードで同じ番号のラベル
+    int newBase = -1;
+    if (base >= 0) {
+      int number = ((Label)from.getCommand(base)).getNumber();
+      for (int i = 0; i < to.numCommands() && newBase < 0; i++) {
+        Command command = to.getCommand(i);
+        if (command instanceof Label && ((Label)command).getNumber() == number) newBase = i;
       }
-      */
-      
+      if (newBase < 0)
+        throw new SimulateException("新しいコードにラベルがありません：" + number);
+    }
+
+    int newIndex = newBase + index - base;
+    if (newIndex >= to.numCommands())
+      throw new SimulateException("新しいコードに対応する位置がありません pc:" + index);
+    for (int i = newBase + 1; i <= newIndex; i++) {
+      if (to.getCommand(i) instanceof Label)
+        throw new SimulateException("新しいコードに対応する位置がありません pc:" + index);
+    }
+    Command oldCommand = from.getCommand(index);
+    Command newCommand = to.getCommand(newIndex);
+    if (oldCommand.cmd != newCommand.cmd ||
+        sameContent && !(oldCommand instanceof Label) &&
+        !Arrays.equals(commandBytes(oldCommand), commandBytes(newCommand)))
+      throw new SimulateException("新しいコードの対応する位置のコマンドが異なります pc:" +
+          index + " " + oldCommand + " -> " + newCommand);
+    return newIndex;
+  }
+
+  /** コマンドのコードバイト */
+  private static byte[]commandBytes(Command command) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    command.write(new HTCWriter(out));
+    return out.toByteArray();
+  }
+
+  /** 現在の状態から分岐したシミュレータを作成する。snapshot().fork()と同じ */
+  public Simulator fork() {
+    return snapshot().fork();
+  }
+
+  /**
+   * 分岐したシミュレータを作成する。サブクラスは自身のクラスのインスタンスを
+   * 返すようにオーバーライドすること
+   */
+  protected Simulator create(HTCCode code, FileArea fileArea, FrameBuffer frameBuffer,
+      RegisterStore regStore) {
+    return new Simulator(code, fileArea, frameBuffer, regStore);
+  }
+
+  /**
+   * 最大maxInstructions個のコマンドを実行する。
+   * 入力待ち、時間待ちになった場合、終了した場合はその時点で戻る。
+   * 待ちになった場合は、入力の設定後あるいは時刻経過後に再度呼び出せば続きから
+   * 実行される。
+   */
+  public Status step(int maxInstructions) {
+    Metrics.Session m = metrics;
+    if (m == null) return doStep(maxInstructions);
+    long count = instructionCount;
+    m.stepping();
+    Status result = doStep(maxInstructions);
+    m.stepped(instructionCount - count, result);
+    return result;
+  }
+
+  /** step()の本体 */
+  private Status doStep(int maxInstructions) {
+    if (terminated) return status = Status.TERMINATED;
+    status = Status.RUNNING;
+
+    // タイトル処理
+    if (!titleDone) {
+      title(code.getTitle());
+      if (status != Status.RUNNING) return suspended();
+      resuming = false;
+      titleDone = true;
+    }
+
+    // コマンド処理。ブロックや融合命令は一度に複数のコマンドを実行する
+    instructionLimit = instructionCount + maxInstructions;
+    while (instructionCount < instructionLimit) {
+      if (terminated) return status = Status.TERMINATED;
+      int index = pc;
       try {
-        Method method = methodMap.get(argClass);
-        method.invoke(this, command);
-      } catch (Exception ex) {
-        ex.printStackTrace();
-        assert(false);
+        if (linking) {
+          pc = linked().nodes[index].execute(this, index);
+        } else {
+          pc = index + 1;
+          Command command = code.getCommand(index);
+          handlers[command.cmd.ordinal()].execute(this, command);
+        }
+      } catch (SimulateException ex) {
+        throw ex;
+      } catch (RuntimeException ex) {
+        throw new SimulateException(
+            "実行エラー pc:" + index + " " + code.getCommand(index), ex);
       }
+      if (status != Status.RUNNING) {
+        // 同じコマンドを再実行する
+        pc = index;
+        return suspended();
+      }
+      resuming = false;
+      instructionCount++;
+    }
+    return terminated? Status.TERMINATED:status;
+  }
+
+  /** 実行中のstep()で、現在のコマンドを含めて実行できるコマンド数 */
+  long remainingInstructions() {
+    return instructionLimit - instructionCount;
+  }
 
+  /** 待ちになった場合の状態を返す。ブレークの場合はコマンドを実行していない */
+  private Status suspended() {
+    if (terminated) return status = Status.TERMINATED;
+    if (status != Status.BREAK) resuming = true;
+    return status;
+  }
+
+  /** 実行中のコマンドを待ち状態にする */
+  protected void suspend(Status value) {
+    status = value;
+  }
+
+  /** コードを実行する。待ちの間はこのスレッドを停止する */
+  public void run() {
+    while (true) {
+      switch (step(Integer.MAX_VALUE)) {
+      case TERMINATED:
+        return;
+      case WAITING_INPUT:
+        awaitInput();
+        break;
+      case WAITING_TIMER:
+        awaitTimer();
+        break;
+      case BREAK:
+        debugger.awaitResume();
+        break;
+      default:
+        break;
+      }
     }
   }
 
+  /** 入力があるまで停止する */
+  protected void awaitInput() {
+
+    // 待機中であることを書いてから確認する。setCharacter()は追加してから読む
+    inputWaiter = Thread.currentThread();
+    try {
+      while (inputQueue.isEmpty() && !terminated) {
+        LockSupport.park(this);
+        if (Thread.interrupted()) return;
+      }
+    } finally {
+      inputWaiter = null;
+    }
+  }
+
+  /** 入力待ちで停止しているスレッドを再開する */
+  private void unparkInputWaiter() {
+    Thread waiter = inputWaiter;
+    if (waiter != null) LockSupport.unpark(waiter);
+  }
+
+  /** 時間待ちの終了時刻まで停止する */
+  protected void awaitTimer() {
+    long ms = wakeupTime - currentTimeMillis();
+    if (ms <= 0) return;
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException ex) {
+    }
+  }
+
+  /** 現在時刻 */
+  protected long currentTimeMillis() {
+    return clock.millis();
+  }
+
+  /** 時計を設定する。レジスタストアの時計も同じものにする */
+  public void setClock(SimClock clock) {
+    this.clock = clock;
+    regStore.setClock(clock);
+  }
+
+  /** 時計を取得する */
+  public SimClock getClock() {
+    return clock;
+  }
+
+  /**
+   * 指定時間待つ。経過していればtrueを返す。
+   * 経過していなければ時間待ち状態にしてfalseを返すので、呼び出し側はそのまま
+   * 戻ること。
+   */
+  protected boolean delay(int ms) {
+    if (wakeupTime < 0) wakeupTime = currentTimeMillis() + ms;
+    if (clock.advanceTo(wakeupTime) || currentTimeMillis() >= wakeupTime) {
+      Metrics.Session m = metrics;
+      if (m != null) m.waited(currentTimeMillis() - (wakeupTime - ms));
+      wakeupTime = -1;
+      return true;
+    }
+    suspend(Status.WAITING_TIMER);
+    return false;
+  }
+
   /** タイトル処理 */
   @MethodFor(cls=Title.class)
   protected void title(Title command) {
 
     if (command.startScreen == StartScreen.NONE) return;
 
-    int numColumns = frameBuffer.numColumns();
-    displayClear(null);
-
-    // タイトル表示
-    SJIS title = command.title;
-    int x = (numColumns - title.length()) / 2;
-    frameBuffer.drawSJIS(3, x, title, (byte)0);
+    if (!resuming) {
+      int numColumns = frameBuffer.numColumns();
+      displayClear(null);
 
-    // バージョン表示
-    SJIS version = new SJIS("Ver ").append(command.version);
-    x = (numColumns - version.length()) / 2;
-    frameBuffer.drawSJIS(5, x, version, (byte)0);
+      // タイトル表示
+      SJIS title = command.title;
+      int x = (numColumns - title.length()) / 2;
+      frameBuffer.drawSJIS(3, x, title, (byte)0);
 
+      // バージョン表示
+      SJIS version = new SJIS("Ver ").append(command.version);
+      x = (numColumns - version.length()) / 2;
+      frameBuffer.drawSJIS(5, x, version, (byte)0);
+    }
 
     switch (command.startScreen) {
     case TWOSECONDS:
-      try {
-        Thread.sleep(2000);
-      } catch (InterruptedException ex) {
-      }
+      delay(2000);
       break;
     case ANYKEY:
-      input();
+      if (!resuming) inputPoint(command);
+      if (pollInput() < 0) suspend(Status.WAITING_INPUT);
       break;
     default: break;
     }
@@ -206,60 +789,50 @@ public class Simulator extends Thread {
   @MethodFor(cls=NoEchoInput.class)
   protected void noEchoInput(NoEchoInput command) {
     // if (log.ist()) log.trace("noEchoInput " + command);
+    if (!resuming) inputPoint(command);
 
     while (true) {
-      int value = input();
-      if (terminated) return;
+      int value = pollInput();
+      if (value < 0) {
+        suspend(Status.WAITING_INPUT);
+        return;
+      }
       Key key = Key.findKey(value);
       if (key == null) {
         beep();
         continue;
       }
-      regStore.setValue(command.register, value);
+      if (command.register.type() == Type.INTEGER) regStore.setInt(command.register, value);
+      else regStore.setValue(command.register, value);
       return;
     }
   }
 
   /** 条件付きジャンプ */
-  @SuppressWarnings("unchecked")
   @MethodFor(cls=JumpIf.class)
   protected void jumpIf(JumpIf command) {
 
     // if (log.ist())      log.trace(" " + command);
 
-    // 比較対象レジスタの値を取得する
-    @SuppressWarnings("rawtypes")
-    Comparable leftValue = regStore.getValue(command.register);
-
-    // もし右側がレジスタであればその値を取得する
-    Object rightValue = command.value;
-    if (command.value instanceof Register)
-      rightValue = regStore.getValue((Register)command.value);
-
-    // 右側の値を比較可能なオブジェクトに変換
-    rightValue = command.register.type().convert(rightValue);
-
-    // if (log.ist())       log.trace("left/right " + leftValue + ", " + rightValue);
-    
-
-    // 比較実行
-    int result = leftValue.compareTo(rightValue);
-
-    // ジャンプするか否かを決定
-    boolean jump = false;
-    switch (command.comp) {
-    case EQ: jump = result == 0; break;
-    case LT: jump = result < 0; break;
-    case GT: jump = result > 0; break;
-    case LE: jump = result <= 0; break;
-    case GE: jump = result >= 0; break;
-    case NE: jump = result != 0; break;
+    // 定数の比較値は左辺の型に変換済み。レジスタの場合は左辺の型で取得して比較
+    if (Comparison.test(regStore, command.register, command.comp,
+        command.getOperand())) {
+      if (!command.hasTargetLabel()) returnToSystem();
+      else pc = command.getTargetLabel().getIndex();
     }
+  }
 
-    // ジャンプ実行
-    if (jump) {
-      pc = command.getTargetLabel().getIndex();
+  /** 比較結果がオペレータの条件を満たすか */
+  static boolean test(Comp comp, int result) {
+    switch (comp) {
+    case EQ: return result == 0;
+    case LT: return result < 0;
+    case GT: return result > 0;
+    case LE: return result <= 0;
+    case GE: return result >= 0;
+    case NE: return result != 0;
     }
+    return false;
   }
 
   /** ジャンプ */
@@ -267,7 +840,16 @@ public class Simulator extends Thread {
   protected void jump(Jump command) {
     // if (log.ist()) log.trace("jump " + command);
     //pc = code.getBranchIndex(command.labelNumber);
-    pc = command.getTargetLabel().getIndex();
+    if (!command.hasTargetLabel()) returnToSystem();
+    else pc = command.getTargetLabel().getIndex();
+  }
+
+  /**
+   * システムに戻る。ラベル番号１へのジャンプで呼び出される。
+   * 単一のプログラムを実行する場合は終了する。AppRunnerはメニューに戻る
+   */
+  protected void returnToSystem() {
+    terminate();
   }
 
   @MethodFor(cls=EchoedInput.class)
@@ -280,18 +862,29 @@ public class Simulator extends Thread {
     lineInput(command);
   }
 
+  /** 入力コマンドに達した。画面を描画しないフレームバッファであれば画面を保存させる */
+  protected void inputPoint(Command command) {
+    if (frameBuffer instanceof HeadlessFrameBuffer)
+      ((HeadlessFrameBuffer)frameBuffer).inputPoint(instructionCount, command);
+  }
+
   /** 行入力 */
   @MethodFor(cls=LineInput.class)
   protected void lineInput(LineInput command) {
     // if (log.ist()) log.trace("lineInput " + command);
+    if (!resuming) inputPoint(command);
 
     boolean noEcho = false;
     if (command instanceof EchoedInput) {
       noEcho = ((EchoedInput)command).noEcho;
     }
 
-    // 入力バッファ
-    SJIS buffer = new SJIS(0);
+    // 入力バッファ。再実行時は前回の続き
+    if (!resuming) {
+      lineBuffer = new SJIS(0);
+      lineDelaying = false;
+    }
+    SJIS buffer = lineBuffer;
 
     // カーソル表示モード
     CursorShape cursorShape = CursorShape.NONE;
@@ -305,7 +898,7 @@ public class Simulator extends Thread {
     }
 
   loop:
-    while (true) {
+    while (!lineDelaying) {
 
       // カーソル表示
       if (cursorShape != CursorShape.NONE) {
@@ -314,11 +907,12 @@ public class Simulator extends Thread {
       }
 
       // キー入力の取得
-      int value = input();
+      int value = pollInput();
       // if (log.ist()) log.trace("input value " + value);
 
-      if (terminated) {
-        frameBuffer.cursorOff();
+      if (value < 0) {
+        lineBuffer = buffer;
+        suspend(Status.WAITING_INPUT);
         return;
       }
       Key key = Key.findKey(value);
@@ -328,9 +922,9 @@ public class Simulator extends Thread {
       // 返り値をセットして終了
       if (command.specialKeys.contains(key)) {
         // if (log.ist())          log.trace("is specialKey " + key);
-        regStore.setSystem(Register.RSLT, key.code());
-        regStore.setSystem(Register.ENDKY, 1);
-        regStore.setSystem(Register.NUMBR, 0);
+        regStore.setSystemInt(Register.RSLT, key.code());
+        regStore.setSystemInt(Register.ENDKY, 1);
+        regStore.setSystemInt(Register.NUMBR, 0);
 
         frameBuffer.cursorOff();
         return;
@@ -403,16 +997,23 @@ public class Simulator extends Thread {
         case IMMEDIATE: // すぐ
           break loop;
         case ONESECOND: // 1秒後
-          try {
-            Thread.sleep(1000);
-          } catch (InterruptedException ex) {
-          }
+          lineDelaying = true;
           break loop;
         default: break;
         }
       }
     } // while
 
+    // 全桁入力後の1秒待ち
+    if (lineDelaying) {
+      if (!delay(1000)) {
+        lineBuffer = buffer;
+        return;
+      }
+      lineDelaying = false;
+    }
+    lineBuffer = null;
+
     // 値を変数に設定
     switch (command.register.type()) {
     case STRING:
@@ -421,9 +1022,9 @@ public class Simulator extends Thread {
     default:
       regStore.setValue(command.register, buffer.toString());
     }
-    regStore.setSystem(Register.RSLT, 0);
-    regStore.setSystem(Register.ENDKY, 0);
-    regStore.setSystem(Register.NUMBR, buffer.length());
+    regStore.setSystemInt(Register.RSLT, 0);
+    regStore.setSystemInt(Register.ENDKY, 0);
+    regStore.setSystemInt(Register.NUMBR, buffer.length());
     frameBuffer.cursorOff();
   }
 
@@ -435,7 +1036,7 @@ public class Simulator extends Thread {
 
     String s = "" + regStore.getValue(command.src);
     regStore.setValue(command.dst, new SJIS(s));
-    regStore.setSystem(Register.RSLT, s.length());
+    regStore.setSystemInt(Register.RSLT, s.length());
 
     // if (log.ist()) log.trace("[" + s + "]");
   }
@@ -445,7 +1046,7 @@ public class Simulator extends Thread {
   protected void stringShift(StringShift command) {
     // if (log.ist()) log.trace("" + command);
 
-    SJIS sjis = regStore.getValue(command.register);
+    SJIS sjis = regStore.getSJIS(command.register);
     if (sjis.length() > command.size) {
       sjis = sjis.extract(0, command.size);
     } else {
@@ -463,16 +1064,24 @@ public class Simulator extends Thread {
   protected void masterSearch(final MasterSearch command) {
     // if (log.ist()) log.trace("" + command);
 
-    final MemoryFile file = fileArea.getFile(getFilenameSJIS(command.filename));
+    masterSearch(command, fileArea.getFile(getFilenameSJIS(command.filename)));
+  }
+
+  /** 対象ファイルを解決済みのマスタ検索 */
+  protected void masterSearch(final MasterSearch command, final MemoryFile file) {
     if (file == null) {
       // if (log.ist()) log.trace("  no file");
       regStore.initValue(command.resultReg);
-      regStore.setSystem(Register.RSLT, -1);
+      regStore.setSystemInt(Register.RSLT, -1);
       return;
     }
 
     final int recordCount = file.recordCount(command.recordLen);
 
+    // 比較回数はメトリクスを取るときだけ数える
+    final Metrics.Session m = metrics;
+    final int[]probes = m != null? new int[1]:null;
+
     // if (log.ist()) log.trace("  recordCount " + recordCount);
     //ystem.err.println("recordCount " + recordCount);
 
@@ -481,6 +1090,7 @@ public class Simulator extends Thread {
         return recordCount;
       }
       public SJIS get(int index) {
+        if (probes != null) probes[0]++;
         boolean positionResult = file.position(command.recordLen, index);
         assert positionResult;
         SJIS sjis = file.read(command.recordLen);
@@ -494,10 +1104,10 @@ public class Simulator extends Thread {
       }
     };
 
-    SJIS key = regStore.getValue(command.keyReg1);
+    SJIS key = regStore.getSJIS(command.keyReg1);
     key = key.forceSize(command.keySize1);
     if (command.keyReg2 != null) {
-      SJIS key2 = regStore.getValue(command.keyReg2);
+      SJIS key2 = regStore.getSJIS(command.keyReg2);
       key2 = key2.forceSize(command.keySize2);
       key.append(key2);
     }
@@ -518,16 +1128,17 @@ public class Simulator extends Thread {
     );
 
     // if (log.ist()) log.trace("  index " + index);
+    if (m != null) m.masterSearched(probes[0]);
 
     if (index < 0) {
       regStore.initValue(command.resultReg);
-      regStore.setSystem(Register.RSLT, -2);
+      regStore.setSystemInt(Register.RSLT, -2);
       return;
     }
 
     assert(file.position(index, command.recordLen));
     regStore.setValue(command.resultReg, file.read(command.recordLen));
-    regStore.setSystem(Register.RSLT, 0);
+    regStore.setSystemInt(Register.RSLT, 0);
   }
 
   /** 変数値のコピー。src,dstともに任意の型の変数 */
@@ -535,8 +1146,8 @@ public class Simulator extends Thread {
   protected void assign(Assign command) {
     // if (log.ist()) log.trace(command.toString());
 
-    // srcを取得する
-    Object src = command.src;
+    // srcを取得する。定数はdstの型に変換済み
+    Object src = command.getOperand();
 
     // srcがレジスタの場合、その型はdstと一致しなくてもよい
     if (src instanceof Register) {
@@ -557,9 +1168,9 @@ public class Simulator extends Thread {
   protected void stringConcat(StringConcat command) {
     // if (log.ist()) log.trace(command.toString());
 
-    SJIS src1Value = regStore.getValue(command.srcReg1);
-    SJIS src2Value = regStore.getValue(command.srcReg2);
-    SJIS dstValue = regStore.getValue(command.dstReg);
+    SJIS src1Value = regStore.getSJIS(command.srcReg1);
+    SJIS src2Value = regStore.getSJIS(command.srcReg2);
+    SJIS dstValue = regStore.getSJIS(command.dstReg);
 
     int src1Avail = Math.min(
         src1Value.length() - command.srcPos1,
@@ -594,14 +1205,14 @@ public class Simulator extends Thread {
   protected void extractCopy(ExtractCopy command) {
     // if (log.ist()) log.trace("" + command);
 
-    SJIS srcValue = regStore.getValue(command.src);
+    SJIS srcValue = regStore.getSJIS(command.src);
     // if (log.ist()) log.trace("src:" + srcValue);
 
     srcValue = srcValue.forceSize(command.srcIndex + command.srcSize);
 
     srcValue = srcValue.extract(command.srcIndex, command.srcSize);
 
-    SJIS dstValue = regStore.getValue(command.dst);
+    SJIS dstValue = regStore.getSJIS(command.dst);
     // if (log.ist()) log.trace("dst:" + dstValue);
 
     if (dstValue.length() < command.dstIndex + srcValue.length()) {
@@ -623,7 +1234,11 @@ public class Simulator extends Thread {
 
     // if (log.ist())      log.trace("[" + regStore.getValue(command.register).toString()+ "]");
 
-    MemoryFile file = fileArea.ensureFile(getFilenameSJIS(command.filename));
+    recordWrite(command, fileArea.ensureFile(getFilenameSJIS(command.filename)));
+  }
+
+  /** 対象ファイルを解決済みのレコードの書き込み */
+  protected void recordWrite(RecordWrite command, MemoryFile file) {
     /*
     file.write(
         (SJIS)varStore.getRegisterValue(command.register),
@@ -633,7 +1248,7 @@ public class Simulator extends Thread {
     );
     */
 
-    SJIS sjis = regStore.getValue(command.register);
+    SJIS sjis = regStore.getSJIS(command.register);
     sjis = sjis.forceSize(command.recordLen);
     if (command.crlf) sjis = sjis.append(new SJIS("\r\n"));
     if (command.overwrite) {
@@ -648,9 +1263,13 @@ public class Simulator extends Thread {
   protected void recordRead(RecordRead command) {
     // if (log.ist()) log.trace("" + command);
 
-    MemoryFile file = fileArea.getFile(getFilenameSJIS(command.filename));
+    recordRead(command, fileArea.getFile(getFilenameSJIS(command.filename)));
+  }
+
+  /** 対象ファイルを解決済みのレコードの読込 */
+  protected void recordRead(RecordRead command, MemoryFile file) {
     if (file == null) {
-      regStore.setSystem(Register.RSLT, -1);
+      regStore.setSystemInt(Register.RSLT, -1);
       return;
     }
 
@@ -671,7 +1290,7 @@ public class Simulator extends Thread {
       regStore.setValue(command.register, sjis);
     //}
 
-    regStore.setSystem(Register.RSLT, result? 0:-2);
+    regStore.setSystemInt(Register.RSLT, result? 0:-2);
   }
 
   /** レコード数取得 */
@@ -679,14 +1298,18 @@ public class Simulator extends Thread {
   protected void recordCount(RecordCount command) {
     // if (log.ist()) log.trace("" + command);
 
-    MemoryFile file = fileArea.getFile(getFilenameSJIS(command.filename));
+    recordCount(command, fileArea.getFile(getFilenameSJIS(command.filename)));
+  }
+
+  /** 対象ファイルを解決済みのレコード数取得 */
+  protected void recordCount(RecordCount command, MemoryFile file) {
     if (file == null) {
-      regStore.setSystem(Register.RSLT, -1);
+      regStore.setSystemInt(Register.RSLT, -1);
       return;
     }
 
-    regStore.setValue(command.intReg, file.fileSize() / command.recordLen);
-    regStore.setSystem(Register.RSLT, 0);
+    regStore.setInt(command.intReg, file.fileSize() / command.recordLen);
+    regStore.setSystemInt(Register.RSLT, 0);
   }
 
   /** ファイルの存在チェック */
@@ -694,9 +1317,12 @@ public class Simulator extends Thread {
   protected void fileExists(FileExists command) {
     // if (log.ist()) log.trace("" + command);
 
-    regStore.setSystem(Register.RSLT,
-        fileArea.getFile(getFilenameSJIS(command.filename)) == null? -1:0
-    );
+    fileExists(command, fileArea.getFile(getFilenameSJIS(command.filename)));
+  }
+
+  /** 対象ファイルを解決済みのファイルの存在チェック */
+  protected void fileExists(FileExists command, MemoryFile file) {
+    regStore.setSystemInt(Register.RSLT, file == null? -1:0);
   }
 
   /** 変数初期化 */
@@ -721,7 +1347,7 @@ public class Simulator extends Thread {
       );
     }
 
-    regStore.setSystem(Register.RSLT, file.stopped? -2:0);
+    regStore.setSystemInt(Register.RSLT, file.stopped? -2:0);
   }
 
   /** アップロード */
@@ -731,7 +1357,7 @@ public class Simulator extends Thread {
 
     MemoryFile memFile = fileArea.getFile(getFilenameSJIS(command.filename));
     if (memFile == null) {
-      regStore.setSystem(Register.RSLT, -1);
+      regStore.setSystemInt(Register.RSLT, -1);
       return;
     }
 
@@ -739,7 +1365,7 @@ public class Simulator extends Thread {
     file.put(memFile.filename.toString(), memFile.getBytes());
     upload(file);
 
-    regStore.setSystem(Register.RSLT, file.stopped? -2:0);
+    regStore.setSystemInt(Register.RSLT, file.stopped? -2:0);
   }
 
   /** ファイル削除 */
@@ -747,23 +1373,20 @@ public class Simulator extends Thread {
   protected void fileDelete(FileDelete command) {
     // if (log.ist()) log.trace("" + command);
 
-    regStore.setSystem(Register.RSLT,
+    regStore.setSystemInt(Register.RSLT,
         fileArea.deleteFile(getFilenameSJIS(command.filename))? 0:-1);
   }
 
 
   public SJIS getFilenameSJIS(Filename filename) {
     if (filename.getSJIS() != null) return filename.getSJIS();
-    return regStore.getValue(filename.getRegister());
+    return regStore.getSJIS(filename.getRegister());
   }
 
   /** ウェイト実行 */
   @MethodFor(cls=WaitMS.class)
   protected void waitMS(WaitMS command) {
-    try {
-      Thread.sleep(command.ms);
-    } catch (InterruptedException ex) {
-    }
+    delay(command.ms);
   }
 
   /////////////////////////////////////////////////////////////////////////////
@@ -784,28 +1407,127 @@ public class Simulator extends Thread {
   }
 
   /** 入力文字 */
-  protected ArrayList<Integer>inputChars = new ArrayList<Integer>();
+  protected final IntQueue inputQueue = new IntQueue();
 
-  /** 文字入力 */
-  protected synchronized int input() {
-    while (true) {
-      if (inputChars.size() == 0) {
-        try {
-          wait();
-        } catch (Exception ex) {
-          return 0;
-        }
-      }
-      int value = inputChars.remove(0);
+  /** awaitInput()で停止しているスレッド */
+  private volatile Thread inputWaiter;
 
-      return value;
+  /** 文字入力。入力がなければ-1を返す */
+  protected int pollInput() {
+    int value = inputQueue.poll();
+    if (value >= 0 && timeTravel != null) timeTravel.consumed(value);
+    return value;
+  }
+
+  /** 文字入力。入力があるまでこのスレッドを停止する。
+   * 割り込まれたか終了した場合は0を返す
+   * @deprecated 入力待ちはstep()がWAITING_INPUTを返して中断するので、
+   * pollInput()を使用すること */
+  @Deprecated
+  protected int input() {
+    while (true) {
+      int value = pollInput();
+      if (value >= 0) return value;
+      awaitInput();
+      if (inputQueue.isEmpty()) return 0;
     }
   }
 
+  /** 未処理の入力があるか */
+  public boolean hasInput() {
+    return !inputQueue.isEmpty();
+  }
+
   /** キャラクタをセット */
-  public synchronized void setCharacter(int value) {
-    inputChars.add(value);
-    notify();
+  public void setCharacter(int value) {
+    inputQueue.offer(value);
+    unparkInputWaiter();
+    wake();
+  }
+
+  /** 複数のキャラクタをまとめてセット */
+  public void setCharacters(int[]values) {
+    inputQueue.offerAll(values.clone());
+    unparkInputWaiter();
+    wake();
+  }
+
+  /**
+   * シミュレータの状態のスナップショット
+   * <p>
+   * プログラムカウンタ、実行状態、レジスタ、画面、ファイル、未処理の入力を保持する。
+   * ファイルデータはコピーせずに共有し、書き込みがあった時点でコピーされるので、
+   * 一つのスナップショットから多数のシミュレータを分岐させても、ファイルの大きさに
+   * 比例するコストはかからない。スナップショット自体は変更されないので、
+   * 複数のスレッドから同時にfork()してよい。
+   * </p>
+   */
+  public static class Snapshot {
+
+    /** 作成元。分岐したシミュレータの作成に使用する */
+    protected final Simulator origin;
+
+    protected final int pc;
+    protected final Status status;
+    protected final long instructionCount;
+    protected final boolean resuming;
+    protected final boolean titleDone;
+    protected final long wakeupTime;
+    protected final SJIS lineBuffer;
+    protected final boolean lineDelaying;
+    protected final SimClock clock;
+    protected final RegisterStore regStore;
+    protected final FrameBuffer frameBuffer;
+    protected final FileArea fileArea;
+    protected final int[]input;
+
+    protected Snapshot(Simulator sim) {
+      origin = sim;
+      pc = sim.pc;
+      status = sim.status;
+      instructionCount = sim.instructionCount;
+      resuming = sim.resuming;
+      titleDone = sim.titleDone;
+      wakeupTime = sim.wakeupTime;
+      lineBuffer = sim.lineBuffer;
+      lineDelaying = sim.lineDelaying;
+      clock = sim.clock.fork();
+      regStore = sim.regStore.copy();
+      frameBuffer = sim.frameBuffer.copy();
+      fileArea = sim.fileArea.copy();
+      input = sim.inputQueue.toArray();
+    }
+
+    /** プログラムカウンタ */
+    public int getPc() {
+      return pc;
+    }
+
+    /** 実行状態 */
+    public Status getStatus() {
+      return status;
+    }
+
+    /** このスナップショットから分岐したシミュレータを作成する */
+    public Simulator fork() {
+      Simulator sim = origin.create(origin.code, fileArea.sharedCopy(), frameBuffer.copy(),
+          regStore.copy());
+      System.arraycopy(origin.handlers, 0, sim.handlers, 0, sim.handlers.length);
+      sim.linking = origin.linking;
+      sim.fusing = origin.fusing;
+      sim.pc = pc;
+      sim.status = status;
+      sim.terminated = status == Status.TERMINATED;
+      sim.instructionCount = instructionCount;
+      sim.resuming = resuming;
+      sim.titleDone = titleDone;
+      sim.wakeupTime = wakeupTime;
+      sim.lineBuffer = lineBuffer;
+      sim.lineDelaying = lineDelaying;
+      sim.setClock(clock.fork());
+      sim.inputQueue.offerAll(input.clone());
+      return sim;
+    }
   }
 
   public static class TransferFile {
@@ -0,0 +1,161 @@
+package com.cm55.phl.sim;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.*;
+
+import com.cm55.phl.*;
+import com.cm55.phl.Command.*;
+import com.cm55.phl.PHL.*;
+import com.cm55.phl.gen.*;
+import com.cm55.phl.gen.Macro.*;
+import com.cm55.phl.sim.Simulator.*;
+
+public class SimulatorTest {
+
+  /** 入力待ちで中断し、入力後に同じコマンドから再開する */
+  @Test
+  public void inputResume() throws IOException {
+    Simulator sim = simulator(StartScreen.NONE, new Compound(
+      new Assign(Register.INT1, 1),
+      new EchoedInput(0, 0, Register.DAT1, 4, EnumSet.noneOf(Key.class)),
+      new Assign(Register.INT1, 2)
+    ));
+    assertEquals(Status.WAITING_INPUT, sim.step(1000));
+    int pc = sim.getPc();
+    assertTrue(sim.getCode().getCommand(pc) instanceof EchoedInput);
+    assertEquals(1, (int)sim.regStore.getValue(Register.INT1));
+
+    // 入力がなければそのまま
+    assertEquals(Status.WAITING_INPUT, sim.step(1000));
+    assertEquals(pc, sim.getPc());
+
+    // 行が終わるまでは入力待ち
+    sim.setCharacters(new int[] { '1', '2' });
+    assertEquals(Status.WAITING_INPUT, sim.step(1000));
+    assertEquals(pc, sim.getPc());
+
+    sim.setCharacter(Key.ENT.code());
+    assertEquals(Status.TERMINATED, sim.step(1000));
+    assertEquals(new SJIS("12"), sim.regStore.getValue(Register.DAT1));
+    assertEquals(2, (int)sim.regStore.getValue(Register.INT1));
+    assertTrue(sim.isTerminated());
+    assertEquals(Status.TERMINATED, sim.step(1000));
+  }
+
+  /** 指定数のコマンドを実行するとRUNNINGで戻る */
+  @Test
+  public void stepCount() throws IOException {
+    Simulator sim = simulator(StartScreen.NONE, new Compound(
+      new Assign(Register.INT1, 1),
+      new Assign(Register.INT2, 2),
+      new Assign(Register.INT3, 3)
+    ));
+    long count = sim.getInstructionCount();
+    assertEquals(Status.RUNNING, sim.step(1));
+    assertEquals(count + 1, sim.getInstructionCount());
+    while (sim.step(1) == Status.RUNNING);
+    assertEquals(Status.TERMINATED, sim.getStatus());
+    assertEquals(3, (int)sim.regStore.getValue(Register.INT3));
+  }
+
+  /** ANYKEYのタイトルはキー入力を待つ */
+  @Test
+  public void titleAnyKey() throws IOException {
+    Simulator sim = simulator(StartScreen.ANYKEY, new Compound(
+      new Assign(Register.INT1, 1)
+    ));
+    assertEquals(Status.WAITING_INPUT, sim.step(1000));
+    assertEquals(Status.WAITING_INPUT, sim.step(1000));
+    assertEquals(0, (int)sim.regStore.getValue(Register.INT1));
+    sim.setCharacter(Key.ENT.code());
+    assertEquals(Status.TERMINATED, sim.step(1000));
+    assertEquals(1, (int)sim.regStore.getValue(Register.INT1));
+  }
+
+  /** 時間待ちは終了時刻まで中断する */
+  @Test
+  public void timer() throws Exception {
+    Simulator sim = simulator(StartScreen.NONE, new Compound(
+      new WaitMS(50),
+      new Assign(Register.INT1, 1)
+    ));
+    assertEquals(Status.WAITING_TIMER, sim.step(1000));
+    long wakeup = sim.getWakeupTime();
+    assertTrue(wakeup > 0);
+    while (System.currentTimeMillis() < wakeup) {
+      Status status = sim.step(1000);
+      if (System.currentTimeMillis() < wakeup) assertEquals(Status.WAITING_TIMER, status);
+      Thread.sleep(5);
+    }
+    while (sim.step(1000) == Status.WAITING_TIMER) Thread.sleep(5);
+    assertEquals(Status.TERMINATED, sim.getStatus());
+    assertEquals(1, (int)sim.regStore.getValue(Register.INT1));
+  }
+
+  /** 仮想時間では時間待ちで中断せず、時計が進む */
+  @Test
+  public void virtualTimer() throws IOException {
+    Simulator sim = simulator(StartScreen.NONE, new Compound(
+      new WaitMS(5000)
+    ));
+    SimClock.Virtual clock = new SimClock.Virtual(0);
+    sim.setClock(clock);
+    assertEquals(Status.TERMINATED, sim.step(1000));
+    assertTrue(clock.millis() >= 5000);
+  }
+
+  /** 旧来のinput()は入力があるまで停止する */
+  @SuppressWarnings("deprecation")
+  @Test(timeout = 5000)
+  public void deprecatedInput() throws Exception {
+    Simulator sim = simulator(StartScreen.NONE, new DisplayClear());
+    sim.setCharacter('A');
+    assertEquals('A', sim.input());
+
+    int[]result = new int[1];
+    Thread thread = new Thread(()-> result[0] = sim.input());
+    thread.start();
+    Thread.sleep(50);
+    sim.setCharacter('B');
+    thread.join();
+    assertEquals('B', result[0]);
+  }
+
+  /** 入力の追加と入力待ちが交錯しても、起こし損ないがない。
+   * 一文字ずつ、消費されてから次を追加するので、毎回入力待ちに入りうる */
+  @Test(timeout = 60000)
+  public void inputHandshake() throws Exception {
+    Simulator sim = simulator(StartScreen.NONE, new DisplayClear());
+    final int count = 20000;
+    AtomicInteger consumed = new AtomicInteger();
+    AtomicInteger wrong = new AtomicInteger();
+    Thread consumer = new Thread(()-> {
+      for (int i = 0; i < count; i++) {
+        int value;
+        while ((value = sim.pollInput()) < 0) sim.awaitInput();
+        if (value != (i & 0xff)) wrong.incrementAndGet();
+        consumed.incrementAndGet();
+      }
+    });
+    consumer.start();
+    for (int i = 0; i < count; i++) {
+      sim.setCharacter(i & 0xff);
+      while (consumed.get() <= i) Thread.yield();
+    }
+    consumer.join();
+    assertEquals(0, wrong.get());
+  }
+
+  private static Simulator simulator(StartScreen startScreen, Object body) throws IOException {
+    Title title = new Title("TEST", "1.0").setStartScreen(startScreen);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new Generator(title, body).outputHTC(out);
+    HTCCode code = new HTCCode(new ByteArrayInputStream(out.toByteArray()));
+    return new Simulator(code, new FileArea(), new FrameBuffer(16, 8), new RegisterStore());
+  }
+}
@@ -0,0 +1,246 @@
+package com.cm55.phl.sim;
+
+import com.cm55.phl.*;
+import com.cm55.phl.Command.*;
+import com.cm55.phl.PHL.*;
+import com.cm55.phl.sim.LinkedCode.*;
+import com.cm55.phl.sim.Simulator.*;
+
+/**
+ * 融合命令
+ * <p>
+ * ジェネレータが出力する決まった命令列をリンク済みコードの中から探し、
+ * 先頭のノードを、列全体を一度に実行するノードに置き換える。二番目以降の
+ * ノードはそのまま残すので、途中にジャンプしてくる場合も問題ない。
+ * 融合の対象とするのは、含まれるコマンドがすべて特化可能、すなわちハンドラの
+ * 置き換えやオーバーライドがされていない場合のみである。
+ * 融合命令は実行した元のコマンド数分を実行コマンド数に加え、step()の残りの
+ * コマンド数が足りない場合は融合せずに実行する。
+ * </p>
+ */
+public class SuperInstructions {
+
+  /** 融合命令の種類 */
+  public enum Kind {
+    /** RecordRead + JumpIf RSLT */
+    READ_TEST("RecordRead+JumpIf RSLT"),
+    /** VariableInit + ExtractCopy。Table.TblField.getValueElement */
+    INIT_EXTRACT("VariableInit+ExtractCopy"),
+    /** EchoedInput + JumpIf RSLT/NUMBRの連鎖。Screen.inputElement */
+    INPUT_DISPATCH("EchoedInput+JumpIf RSLT/NUMBR");
+
+    public final String description;
+    private Kind(String description) {
+      this.description = description;
+    }
+  }
+
+  /** 対象のリンク済みコード */
+  protected final LinkedCode linked;
+
+  /** 種類ごとの設置数 */
+  protected final int[]sites = new int[Kind.values().length];
+
+  /** 種類ごとの実行回数 */
+  protected final long[]fires = new long[Kind.values().length];
+
+  /** リンク済みコードとシミュレータを指定し、融合命令を設置する */
+  public SuperInstructions(LinkedCode linked, Simulator sim) {
+    this.linked = linked;
+    Node[]nodes = linked.nodes;
+    for (int i = 0; i < nodes.length - 1; i++) {
+      Node node = null;
+      switch (nodes[i].command.cmd) {
+      case RecordRead:
+        node = readTest(nodes, i);
+        break;
+      case VariableInit:
+        if (LinkedCode.specializable(sim, Cmd.VariableInit) &&
+            LinkedCode.specializable(sim, Cmd.ExtractCopy))
+          node = initExtract(nodes, i);
+        break;
+      case EchoedInput:
+        if (LinkedCode.specializable(sim, Cmd.EchoedInput))
+          node = inputDispatch(nodes, i);
+        break;
+      default:
+        break;
+      }
+      if (node != null) nodes[i] = node;
+    }
+  }
+
+  /** 設置数を取得 */
+  public int sites(Kind kind) {
+    return sites[kind.ordinal()];
+  }
+
+  /** 実行回数を取得 */
+  public long fires(Kind kind) {
+    return fires[kind.ordinal()];
+  }
+
+  /** 実行回数を文字列化 */
+  @Override
+  public String toString() {
+    StringBuilder s = new StringBuilder();
+    for (Kind kind: Kind.values()) {
+      s.append(kind.description + " sites:" + sites(kind) +
+          " fires:" + fires(kind) + "\n");
+    }
+    return s.toString();
+  }
+
+  /** RSLTと整数定数を比較する特化済みのJumpIfか */
+  private static boolean isResultTest(Node node, Register register) {
+    if (!(node instanceof JumpIfNode)) return false;
+    JumpIfNode jumpIf = (JumpIfNode)node;
+    return jumpIf.left == register && jumpIf.rightReg == null &&
+        jumpIf.rightValue instanceof Integer;
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // RecordRead + JumpIf RSLT
+  /////////////////////////////////////////////////////////////////////////////
+
+  private Node readTest(Node[]nodes, int index) {
+    if (!(nodes[index] instanceof RecordReadNode)) return null;
+    if (!isResultTest(nodes[index + 1], Register.RSLT)) return null;
+    sites[Kind.READ_TEST.ordinal()]++;
+    return new ReadTestNode((RecordReadNode)nodes[index], (JumpIfNode)nodes[index + 1]);
+  }
+
+  /** レコードを読み込み、RSLTで分岐する */
+  class ReadTestNode extends WrapperNode {
+    final RecordReadNode read;
+    final Comp comp;
+    final int value;
+    final int target;
+    ReadTestNode(RecordReadNode read, JumpIfNode jumpIf) {
+      super(read);
+      this.read = read;
+      this.comp = jumpIf.comp;
+      this.value = (Integer)jumpIf.rightValue;
+      this.target = jumpIf.target;
+    }
+    @Override
+    public int execute(Simulator sim, int pc) {
+      if (sim.remainingInstructions() < 2) return read.execute(sim, pc);
+      fires[Kind.READ_TEST.ordinal()]++;
+      read.execute(sim, pc);
+      sim.instructionCount++;
+      int result = sim.regStore.getInt(Register.RSLT);
+      return Simulator.test(comp, Integer.compare(result, value))? target:pc + 2;
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // VariableInit + ExtractCopy
+  /////////////////////////////////////////////////////////////////////////////
+
+  private Node initExtract(Node[]nodes, int index) {
+    if (nodes[index + 1].command.cmd != Cmd.ExtractCopy) return null;
+    VariableInit init = (VariableInit)nodes[index].command;
+    ExtractCopy copy = (ExtractCopy)nodes[index + 1].command;
+    if (copy.dst != init.register || copy.dstIndex != 0) return null;
+    sites[Kind.INIT_EXTRACT.ordinal()]++;
+    return new InitExtractNode(nodes[index], copy);
+  }
+
+  /**
+   * 初期化したレジスタの先頭へ抽出コピーする。
+   * 初期化後の値は空文字列なので、抽出した値がそのまま結果となる。
+   */
+  class InitExtractNode extends WrapperNode {
+    final Register dst;
+    final Register src;
+    final int srcIndex;
+    final int srcSize;
+    InitExtractNode(Node init, ExtractCopy copy) {
+      super(init);
+      this.dst = copy.dst;
+      this.src = copy.src;
+      this.srcIndex = copy.srcIndex;
+      this.srcSize = copy.srcSize;
+    }
+    @Override
+    public int execute(Simulator sim, int pc) {
+      if (sim.remainingInstructions() < 2) return original.execute(sim, pc);
+      fires[Kind.INIT_EXTRACT.ordinal()]++;
+      RegisterStore regStore = sim.regStore;
+      regStore.initValue(dst);
+      SJIS value = regStore.getSJIS(src);
+      value = value.forceSize(srcIndex + srcSize).extract(srcIndex, srcSize);
+      regStore.setValue(dst, value);
+      sim.instructionCount++;
+      return pc + 2;
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // EchoedInput + JumpIf RSLT/NUMBR
+  /////////////////////////////////////////////////////////////////////////////
+
+  private Node inputDispatch(Node[]nodes, int index) {
+
+    // 入力に続く、RSLT/NUMBRの判定、ジャンプ、ラベルの範囲
+    int end = index + 1;
+    int tests = 0;
+    while (end < nodes.length) {
+      Node node = nodes[end];
+      if (isResultTest(node, Register.RSLT) || isResultTest(node, Register.NUMBR)) {
+        tests++;
+      } else if (!(node instanceof JumpNode) && !(node instanceof NopNode &&
+          node.command.cmd == Cmd.Label)) {
+        break;
+      }
+      end++;
+    }
+    if (tests == 0) return null;
+
+    Node[]window = new Node[end - index - 1];
+    System.arraycopy(nodes, index + 1, window, 0, window.length);
+    sites[Kind.INPUT_DISPATCH.ordinal()]++;
+    return new InputDispatchNode(nodes[index], window);
+  }
+
+  /**
+   * 入力を行い、それに続くRSLT/NUMBRの判定を、レジスタを一度だけ取得して行う。
+   * 判定の範囲を出た時点、あるいはstep()の残りのコマンド数を使い切った時点の
+   * プログラムカウンタを返す。
+   */
+  class InputDispatchNode extends WrapperNode {
+    final Node[]window;
+    InputDispatchNode(Node input, Node[]window) {
+      super(input);
+      this.window = window;
+    }
+    @Override
+    public int execute(Simulator sim, int pc) {
+      int next = original.execute(sim, pc);
+      if (sim.status != Status.RUNNING || next != pc + 1) return next;
+      fires[Kind.INPUT_DISPATCH.ordinal()]++;
+      int rslt = sim.regStore.getInt(Register.RSLT);
+      int numbr = sim.regStore.getInt(Register.NUMBR);
+      int start = pc + 1;
+      long remaining = sim.remainingInstructions() - 1;
+      while (start <= next && next < start + window.length && !sim.terminated &&
+          remaining > 0) {
+        remaining--;
+        sim.instructionCount++;
+        Node node = window[next - start];
+        if (node instanceof JumpIfNode) {
+          JumpIfNode jumpIf = (JumpIfNode)node;
+          int left = jumpIf.left == Register.RSLT? rslt:numbr;
+          next = Simulator.test(jumpIf.comp,
+              Integer.compare(left, (Integer)jumpIf.rightValue))? jumpIf.target:next + 1;
+        } else if (node instanceof JumpNode) {
+          next = ((JumpNode)node).target;
+        } else {
+          next++;
+        }
+      }
+      return next;
+    }
+  }
+}
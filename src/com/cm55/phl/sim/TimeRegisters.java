@@ -0,0 +1,108 @@
+package com.cm55.phl.sim;
+
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+
+import com.cm55.phl.*;
+import com.cm55.phl.PHL.*;
+
+/**
+ * 日付時刻レジスタの値
+ * <p>
+ * DATE1～DATED、TIME1～TIME4の17種類の値を、java.timeのフォーマッタで作成する。
+ * このクラスは状態を持たないので、複数のシミュレータから共有してよい。
+ * 作成した値は各RegisterStoreがValuesとして保持し、同じ秒の間は
+ * レジスタごとに同じSJISを返す。時計ごとにキャッシュが分かれるので、
+ * 異なる時計のシミュレータが互いのキャッシュを捨て合うことはない。
+ * </p>
+ */
+public class TimeRegisters {
+
+  /** デフォルトのタイムゾーンのもの */
+  public static final TimeRegisters DEFAULT = new TimeRegisters(ZoneId.systemDefault());
+
+  /** レジスタとフォーマット */
+  private static final EnumMap<Register,DateTimeFormatter>formatters =
+    new EnumMap<Register,DateTimeFormatter>(Register.class);
+  static {
+    formatters.put(Register.DATE1, DateTimeFormatter.ofPattern("uuuu/MM/dd"));
+    formatters.put(Register.DATE2, DateTimeFormatter.ofPattern("uuuuMMdd"));
+    formatters.put(Register.DATE3, DateTimeFormatter.ofPattern("uuuu/MM"));
+    formatters.put(Register.DATE4, DateTimeFormatter.ofPattern("uuuuMM"));
+    formatters.put(Register.DATE5, DateTimeFormatter.ofPattern("MM/dd"));
+    formatters.put(Register.DATE6, DateTimeFormatter.ofPattern("MMdd"));
+    formatters.put(Register.DATE7, DateTimeFormatter.ofPattern("dd/MM/uuuu"));
+    formatters.put(Register.DATE8, DateTimeFormatter.ofPattern("ddMMuuuu"));
+    formatters.put(Register.DATE9, DateTimeFormatter.ofPattern("MM/uuuu"));
+    formatters.put(Register.DATEA, DateTimeFormatter.ofPattern("MMuuuu"));
+    formatters.put(Register.DATEB, DateTimeFormatter.ofPattern("dd/MM"));
+    formatters.put(Register.DATEC, DateTimeFormatter.ofPattern("ddMM"));
+    formatters.put(Register.DATED, DateTimeFormatter.ofPattern("uuMMdd"));
+    formatters.put(Register.TIME1, DateTimeFormatter.ofPattern("HH:mm:ss"));
+    formatters.put(Register.TIME2, DateTimeFormatter.ofPattern("HHmmss"));
+    formatters.put(Register.TIME3, DateTimeFormatter.ofPattern("HH:mm"));
+    formatters.put(Register.TIME4, DateTimeFormatter.ofPattern("HHmm"));
+    assert(formatters.keySet().equals(Register.dateTimeSet));
+  }
+
+  /**
+   * 一秒分の値。各レジスタの値は最初に取得された時点で作成する。
+   * 一つのRegisterStoreの中でのみ使用する
+   */
+  static class Values {
+
+    /** 作成元 */
+    final TimeRegisters owner;
+
+    /** エポックからの秒 */
+    final long second;
+
+    /** その秒の日時 */
+    final LocalDateTime time;
+
+    /** レジスタのordinalでインデックスされる値。未作成はnull */
+    final SJIS[]values = new SJIS[Register.values().length];
+
+    Values(TimeRegisters owner, long second) {
+      this.owner = owner;
+      this.second = second;
+      time = LocalDateTime.ofInstant(Instant.ofEpochSecond(second), owner.zone);
+    }
+  }
+
+  /** タイムゾーン */
+  protected final ZoneId zone;
+
+  /** タイムゾーンを指定して作成する */
+  public TimeRegisters(ZoneId zone) {
+    this.zone = zone;
+  }
+
+  /**
+   * 指定時刻（エポックからのミリ秒）の値を取得する。前回の値が同じ作成元の
+   * 同じ秒のものであればそれを返す。前回の値がなければnullを指定する
+   */
+  Values values(Values previous, long millis) {
+    long second = Math.floorDiv(millis, 1000);
+    if (previous != null && previous.owner == this && previous.second == second)
+      return previous;
+    return new Values(this, second);
+  }
+
+  /** 日付時刻レジスタの値を取得する */
+  static SJIS get(Values values, Register register) {
+    SJIS value = values.values[register.ordinal()];
+    if (value != null) return value;
+    DateTimeFormatter formatter = formatters.get(register);
+    if (formatter == null) throw new SimulateException("日付時刻レジスタではありません：" + register);
+    value = new SJIS(formatter.format(values.time));
+    values.values[register.ordinal()] = value;
+    return value;
+  }
+
+  /** 指定時刻（エポックからのミリ秒）における、日付時刻レジスタの値を取得する */
+  public SJIS get(Register register, long millis) {
+    return get(values(null, millis), register);
+  }
+}
@@ -0,0 +1,457 @@
+package com.cm55.phl.sim;
+
+import java.util.*;
+
+import com.cm55.phl.*;
+import com.cm55.phl.PHL.*;
+import com.cm55.phl.sim.FileArea.*;
+import com.cm55.phl.sim.FrameBuffer.*;
+import com.cm55.phl.sim.LinkedCode.*;
+
+/**
+ * 実行履歴による逆実行
+ * <p>
+ * コマンドの実行ごとに、そのコマンドが行ったレジスタ、画面、ファイルの変更と
+ * 消費した入力を、元に戻すための記録（アンドゥログ）として保持する。
+ * stepBack()は最後のコマンドの記録を逆順に適用するので、戻る距離に比例した
+ * 時間しかかからない。一定コマンド数ごとにスナップショット（チェックポイント）も
+ * 作成し、遠くまで戻る場合はチェックポイントから戻すことで、戻す記録の数を
+ * チェックポイント間隔以下にする。
+ * </p>
+ * <p>
+ * 入力待ちや時間待ちで再実行されたコマンドも、一つのコマンドとして記録される。
+ * 記録の合計が予算を超えると、古いものから捨てられる。戻れるのは
+ * earliest()のコマンド数までである。戻した位置から実行を続けると、それ以降の
+ * 記録は新しい実行で置き換えられる。時計は戻さない。
+ * </p>
+ * <p>
+ * レジスタと画面は変更後に通知されるので、直前の内容を影として保持しておき、
+ * 通知時に影から変更前の値を記録する。ファイルは変更前に通知されるので、
+ * 書き換えられる範囲のバイトだけを記録する。追加書き込みではデータは記録されない。
+ * </p>
+ * <p>
+ * チェックポイントのファイルデータは実行中のものと共有されるが、共有中のファイルに
+ * 書き込むとデータ全体がコピーされ、元のデータはチェックポイントに残る。
+ * そのため、チェックポイント作成後に初めて書き込まれたファイルのデータの大きさを、
+ * そのチェックポイントのバイト数に加える。
+ * </p>
+ */
+public class TimeTravel implements RegisterStore.Listener, FrameBuffer.Listener,
+    FileArea.Listener {
+
+  /** 一コマンドの記録の概算バイト数 */
+  private static final int STEP_BYTES = 64;
+
+  /** 一つの変更記録の概算バイト数 */
+  private static final int UNDO_BYTES = 48;
+
+  /** 記録の予算(バイト) */
+  protected final long budget;
+
+  /** チェックポイントの間隔(コマンド数) */
+  protected final int checkpointInterval;
+
+  /** 対象シミュレータ */
+  protected Simulator sim;
+
+  /** コマンドごとの記録。古い順 */
+  protected final ArrayDeque<Step>steps = new ArrayDeque<Step>();
+
+  /** チェックポイント。古い順 */
+  protected final ArrayDeque<Checkpoint>checkpoints = new ArrayDeque<Checkpoint>();
+
+  /** 記録の合計の概算バイト数 */
+  protected long bytes;
+
+  /** レジスタの影 */
+  private RegisterStore registerShadow;
+
+  /** 画面の影 */
+  private FrameBuffer screenShadow;
+
+  /** 記録を戻している最中。変更通知を記録しない */
+  private boolean restoring;
+
+  /** 予算(バイト)とチェックポイントの間隔(コマンド数)を指定して作成する。間隔は1以上 */
+  public TimeTravel(long budget, int checkpointInterval) {
+    if (checkpointInterval < 1)
+      throw new SimulateException("チェックポイントの間隔が不正です：" + checkpointInterval);
+    this.budget = budget;
+    this.checkpointInterval = checkpointInterval;
+  }
+
+  /** シミュレータに接続する */
+  void attach(Simulator sim) {
+    detach();
+    this.sim = sim;
+    sim.regStore.addListener(this);
+    sim.frameBuffer.addListener(this);
+    sim.fileArea.addListener(this);
+    resync();
+  }
+
+  /** シミュレータから切り離し、記録を捨てる */
+  void detach() {
+    if (sim == null) return;
+    sim.regStore.removeListener(this);
+    sim.frameBuffer.removeListener(this);
+    sim.fileArea.removeListener(this);
+    sim = null;
+    steps.clear();
+    checkpoints.clear();
+    bytes = 0;
+  }
+
+  /** 影を現在の内容にする */
+  private void resync() {
+    registerShadow = sim.regStore.copy();
+    screenShadow = sim.frameBuffer.copy();
+  }
+
+  /** リンク済みコードのノードを記録ノードで包む */
+  void install(LinkedCode linked) {
+    Node[]nodes = linked.nodes;
+    for (int i = 0; i < nodes.length; i++) nodes[i] = new RecordNode(nodes[i]);
+  }
+
+  /** 記録ノード */
+  class RecordNode extends WrapperNode {
+    RecordNode(Node original) {
+      super(original);
+    }
+    @Override
+    public int execute(Simulator sim, int pc) {
+      begin(pc);
+      return original.execute(sim, pc);
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // 記録
+  /////////////////////////////////////////////////////////////////////////////
+
+  /** 一コマンドの記録。実行前の状態と、実行中の変更を戻す処理 */
+  protected static class Step {
+    final long count;
+    final int pc;
+    final boolean resuming;
+    final boolean titleDone;
+    final long wakeupTime;
+    final SJIS lineBuffer;
+    final boolean lineDelaying;
+
+    /** 変更を戻す処理。実行順 */
+    List<Undo>undos;
+
+    /** 概算バイト数 */
+    int bytes = STEP_BYTES;
+
+    Step(Simulator sim, int pc) {
+      count = sim.instructionCount;
+      this.pc = pc;
+      resuming = sim.resuming;
+      titleDone = sim.titleDone;
+      wakeupTime = sim.wakeupTime;
+      lineBuffer = sim.lineBuffer;
+      lineDelaying = sim.lineDelaying;
+    }
+  }
+
+  /** 変更を戻す処理 */
+  protected interface Undo {
+    void undo(TimeTravel tt);
+  }
+
+  /** チェックポイント */
+  protected static class Checkpoint {
+    final long count;
+    final Simulator.Snapshot snapshot;
+
+    /** 概算バイト数。作成後の書き込みでコピーされ、ここに残ったファイルデータを含む */
+    long bytes;
+
+    Checkpoint(long count, Simulator.Snapshot snapshot) {
+      this.count = count;
+      this.snapshot = snapshot;
+      bytes = checkpointBytes(snapshot);
+    }
+  }
+
+  /**
+   * コマンドの実行前。待ちになったコマンドの再実行であれば、新たな記録は作らず、
+   * 変更は最初の実行の記録に加える
+   */
+  protected void begin(int pc) {
+    if (sim.resuming) {
+      Step last = steps.peekLast();
+      if (last != null && last.pc == pc && last.count == sim.instructionCount) return;
+    }
+    if (sim.instructionCount % checkpointInterval == 0 && !sim.resuming &&
+        (checkpoints.isEmpty() || checkpoints.getLast().count != sim.instructionCount)) {
+      Checkpoint checkpoint = new Checkpoint(sim.instructionCount, sim.snapshot());
+      checkpoints.add(checkpoint);
+      bytes += checkpoint.bytes;
+    }
+    steps.add(new Step(sim, pc));
+    bytes += STEP_BYTES;
+    trim();
+  }
+
+  /** 予算を超えた分を古いものから捨てる */
+  private void trim() {
+    while (bytes > budget && steps.size() > 1) {
+      bytes -= steps.removeFirst().bytes;
+      long earliest = steps.getFirst().count;
+      while (!checkpoints.isEmpty() && checkpoints.getFirst().count < earliest)
+        bytes -= checkpoints.removeFirst().bytes;
+    }
+  }
+
+  /** 作成時のチェックポイントの概算バイト数。ファイルデータは共有されるので含めない */
+  private static long checkpointBytes(Simulator.Snapshot snapshot) {
+    return Register.values().length * 17 +
+        snapshot.frameBuffer.numColumns() * snapshot.frameBuffer.numRows() * 8 +
+        snapshot.fileArea.fileList.size() * UNDO_BYTES;
+  }
+
+  /** 現在のコマンドの記録に変更を戻す処理を追加する */
+  private void add(Undo undo, int size) {
+    Step step = steps.peekLast();
+    if (step == null) return;
+    if (step.undos == null) step.undos = new ArrayList<Undo>(2);
+    step.undos.add(undo);
+    step.bytes += UNDO_BYTES + size;
+    bytes += UNDO_BYTES + size;
+  }
+
+  @Override
+  public void changed(Register register) {
+    if (restoring) return;
+    final int index = register.ordinal();
+    final RegisterStore shadow = registerShadow;
+    final int intValue = shadow.ints[index];
+    final float floatValue = shadow.floats[index];
+    final SJIS string = shadow.strings[index];
+    final boolean assigned = shadow.assigned[index];
+    RegisterStore regStore = sim.regStore;
+    shadow.ints[index] = regStore.ints[index];
+    shadow.floats[index] = regStore.floats[index];
+    shadow.strings[index] = regStore.strings[index];
+    shadow.assigned[index] = regStore.assigned[index];
+    add(new RegisterUndo(register, intValue, floatValue, string, assigned), 0);
+  }
+
+  /** レジスタの変更を戻す */
+  protected static class RegisterUndo implements Undo {
+    final Register register;
+    final int intValue;
+    final float floatValue;
+    final SJIS string;
+    final boolean assigned;
+    RegisterUndo(Register register, int intValue, float floatValue, SJIS string,
+        boolean assigned) {
+      this.register = register;
+      this.intValue = intValue;
+      this.floatValue = floatValue;
+      this.string = string;
+      this.assigned = assigned;
+    }
+    public void undo(TimeTravel tt) {
+      int index = register.ordinal();
+      tt.sim.regStore.restore(index, intValue, floatValue, string, assigned);
+      RegisterStore shadow = tt.registerShadow;
+      shadow.ints[index] = intValue;
+      shadow.floats[index] = floatValue;
+      shadow.strings[index] = string;
+      shadow.assigned[index] = assigned;
+    }
+  }
+
+  @Override
+  public void changed(FBRect rect) {
+    if (restoring) return;
+    Cell[]cells = screenShadow.getCells(rect);
+    FBPoint cursor = screenShadow.cursor();
+    screenShadow.setCells(rect, sim.frameBuffer.getCells(rect), sim.frameBuffer.cursor());
+    add(tt->{
+      tt.sim.frameBuffer.setCells(rect, cells, cursor);
+      tt.screenShadow.setCells(rect, cells, cursor);
+    }, cells.length * 8);
+  }
+
+  @Override
+  public void accessed(MemoryFile file, boolean write) {
+  }
+
+  @Override
+  public void modifying(MemoryFile file, int pos, int length) {
+    if (restoring) return;
+
+    // 共有中のデータは書き込みでコピーされ、元のデータは最後のチェックポイントに残る
+    if (file.shared && length > 0 && !checkpoints.isEmpty()) {
+      checkpoints.getLast().bytes += file.fileData.length;
+      bytes += file.fileData.length;
+    }
+    int end = Math.min(file.fileSize, pos + length);
+    byte[]data = new byte[Math.max(0, end - pos)];
+    if (data.length > 0) System.arraycopy(file.fileData, pos, data, 0, data.length);
+    SJIS filename = file.filename;
+    int fileSize = file.fileSize;
+    int recordPointer = file.recordPointer;
+    boolean eof = file.eof;
+    add(tt->{
+      MemoryFile f = tt.sim.fileArea.getFile(filename);
+      if (f != null) f.restore(pos, data, fileSize, recordPointer, eof);
+    }, data.length);
+  }
+
+  @Override
+  public void created(MemoryFile file) {
+    if (restoring) return;
+    SJIS filename = file.filename;
+    add(tt->tt.sim.fileArea.deleteFile(filename), 0);
+  }
+
+  @Override
+  public void deleting(MemoryFile file, int index) {
+    if (restoring) return;
+    add(tt->tt.sim.fileArea.reinsert(file, index), file.shared? 0:file.fileData.length);
+  }
+
+  /** 入力を消費した */
+  void consumed(int value) {
+    if (restoring) return;
+    add(new InputUndo(value), 0);
+  }
+
+  /** 消費した入力を戻す */
+  protected static class InputUndo implements Undo {
+    final int value;
+    InputUndo(int value) {
+      this.value = value;
+    }
+    public void undo(TimeTravel tt) {
+      tt.sim.inputQueue.unread(value);
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // 逆実行
+  /////////////////////////////////////////////////////////////////////////////
+
+  /** 戻れる最も古いコマンド数。記録がなければ-1 */
+  public long earliest() {
+    return steps.isEmpty()? -1:steps.getFirst().count;
+  }
+
+  /** 戻れるコマンド記録の数 */
+  public int size() {
+    return steps.size();
+  }
+
+  /** 記録の合計の概算バイト数 */
+  public long bytes() {
+    return bytes;
+  }
+
+  /** 最後に実行したコマンドの前に戻る。記録がなければfalseを返す */
+  public boolean stepBack() {
+    Step step = steps.pollLast();
+    if (step == null) return false;
+    restoring = true;
+    try {
+      undo(step);
+    } finally {
+      restoring = false;
+    }
+    dropCheckpointsAfter(step.count);
+    return true;
+  }
+
+  /** 指定数のコマンドを戻る。戻った数を返す */
+  public int stepBack(int count) {
+    int n = 0;
+    while (n < count && stepBack()) n++;
+    return n;
+  }
+
+  /**
+   * 指定コマンド数の時点まで戻る。間にチェックポイントがあれば、最も近いものの
+   * 状態にしてから残りを戻す。戻れない場合はfalseを返す
+   */
+  public boolean backTo(long count) {
+    if (steps.isEmpty() || count < earliest()) return false;
+    Checkpoint nearest = null;
+    for (Iterator<Checkpoint>it = checkpoints.descendingIterator(); it.hasNext();) {
+      Checkpoint checkpoint = it.next();
+      if (checkpoint.count < count) break;
+      nearest = checkpoint;
+    }
+    if (nearest != null && nearest.count < sim.instructionCount) restore(nearest);
+    while (!steps.isEmpty() && steps.getLast().count >= count) stepBack();
+    return true;
+  }
+
+  /**
+   * 指定レジスタに最後に書き込んだコマンドの前まで戻る。
+   * 記録の中に書き込みがなければ、戻れるところまで戻ってfalseを返す
+   */
+  public boolean backToWrite(Register register) {
+    while (!steps.isEmpty()) {
+      Step step = steps.getLast();
+      boolean found = false;
+      if (step.undos != null) {
+        for (Undo undo: step.undos) {
+          if (undo instanceof RegisterUndo && ((RegisterUndo)undo).register == register)
+            found = true;
+        }
+      }
+      stepBack();
+      if (found) return true;
+    }
+    return false;
+  }
+
+  /** 一コマンドの変更を戻す */
+  private void undo(Step step) {
+    List<Undo>undos = step.undos;
+    if (undos != null) {
+      for (int i = undos.size() - 1; i >= 0; i--) undos.get(i).undo(this);
+    }
+    bytes -= step.bytes;
+    sim.pc = step.pc;
+    sim.instructionCount = step.count;
+    sim.resuming = step.resuming;
+    sim.titleDone = step.titleDone;
+    sim.wakeupTime = step.wakeupTime;
+    sim.lineBuffer = step.lineBuffer;
+    sim.lineDelaying = step.lineDelaying;
+  }
+
+  /** チェックポイントの状態にし、それ以降の記録を捨てる。消費した入力は戻す */
+  private void restore(Checkpoint checkpoint) {
+    restoring = true;
+    try {
+      while (!steps.isEmpty() && steps.getLast().count >= checkpoint.count) {
+        Step step = steps.removeLast();
+        bytes -= step.bytes;
+        if (step.undos == null) continue;
+        for (int i = step.undos.size() - 1; i >= 0; i--) {
+          Undo undo = step.undos.get(i);
+          if (undo instanceof InputUndo) undo.undo(this);
+        }
+      }
+      sim.restore(checkpoint.snapshot);
+    } finally {
+      restoring = false;
+    }
+    resync();
+    dropCheckpointsAfter(checkpoint.count);
+  }
+
+  /** 指定コマンド数より後のチェックポイントを捨てる */
+  private void dropCheckpointsAfter(long count) {
+    while (!checkpoints.isEmpty() && checkpoints.getLast().count > count)
+      bytes -= checkpoints.removeLast().bytes;
+  }
+}
@@ -0,0 +1,129 @@
+package com.cm55.phl.sim;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.*;
+
+import com.cm55.phl.*;
+import com.cm55.phl.Command.*;
+import com.cm55.phl.PHL.*;
+import com.cm55.phl.gen.*;
+import com.cm55.phl.gen.Macro.*;
+import com.cm55.phl.sim.Simulator.*;
+
+public class TimeTravelTest {
+
+  private static final SJIS FILENAME = new SJIS("A.DAT");
+
+  /** 一コマンドずつ戻すと、レジスタ、ファイル、入力が実行前に戻る */
+  @Test
+  public void stepBack() throws IOException {
+    Simulator sim = simulator(new Compound(
+      new Assign(Register.DAT1, "AB"),
+      new NoEchoInput(Register.INT2),
+      new RecordWrite(new Filename("A.DAT"), 2, Register.DAT1),
+      new NoEchoInput(Register.INT3)
+    ), 0);
+    TimeTravel tt = new TimeTravel(1 << 20, 100);
+    sim.setTimeTravel(tt);
+
+    sim.setCharacter('1');
+    assertEquals(Status.WAITING_INPUT, sim.step(1000));
+    assertEquals('1', (int)sim.regStore.getValue(Register.INT2));
+    assertEquals(2, sim.fileArea.getFile(FILENAME).fileSize());
+    long count = sim.getInstructionCount();
+
+    // 入力待ちのコマンドを戻しても、待ちのまま
+    int size = tt.size();
+    assertTrue(tt.stepBack());
+    assertEquals(size - 1, tt.size());
+    assertEquals(count, sim.getInstructionCount());
+    assertTrue(tt.stepBack());
+    assertEquals(0, sim.fileArea.getFile(FILENAME).fileSize());
+
+    // 入力を消費したコマンドの前に戻ると、入力も戻る
+    assertTrue(tt.stepBack());
+    assertEquals(0, (int)sim.regStore.getValue(Register.INT2));
+    assertTrue(sim.hasInput());
+
+    // 同じ入力で再実行すると同じ状態になる
+    assertEquals(Status.WAITING_INPUT, sim.step(1000));
+    assertEquals('1', (int)sim.regStore.getValue(Register.INT2));
+    assertEquals(2, sim.fileArea.getFile(FILENAME).fileSize());
+    assertEquals(count, sim.getInstructionCount());
+  }
+
+  /** チェックポイントを経由して戻っても、各時点の状態に一致する */
+  @Test
+  public void backToCheckpoint() throws IOException {
+    Simulator sim = simulator(loop(), 0);
+    TimeTravel tt = new TimeTravel(1 << 24, 16);
+    sim.setTimeTravel(tt);
+
+    List<Integer>counts = new ArrayList<Integer>();
+    List<Integer>sizes = new ArrayList<Integer>();
+    for (int i = 0; i < 200; i++) {
+      counts.add((int)sim.regStore.getValue(Register.INT1));
+      sizes.add(sim.fileArea.getFile(FILENAME).fileSize());
+      assertEquals(Status.RUNNING, sim.step(1));
+    }
+    long start = tt.earliest();
+    for (int target: new int[] { 150, 99, 64, 17, 3 }) {
+      assertTrue(tt.backTo(start + target));
+      assertEquals(start + target, sim.getInstructionCount());
+      assertEquals(counts.get(target), sim.regStore.getValue(Register.INT1));
+      assertEquals((int)sizes.get(target), sim.fileArea.getFile(FILENAME).fileSize());
+    }
+  }
+
+  /** チェックポイント後の書き込みでコピーされたファイルデータも予算に数える */
+  @Test
+  public void fileBudget() throws IOException {
+    final int fileSize = 100000;
+    Simulator sim = simulator(loop(), fileSize);
+    TimeTravel tt = new TimeTravel(Long.MAX_VALUE, 4);
+    sim.setTimeTravel(tt);
+    for (int i = 0; i < 40; i++) sim.step(1);
+    assertTrue("" + tt.bytes(), tt.bytes() >= (long)fileSize * 40 / 4 / 2);
+
+    long budget = fileSize * 3;
+    sim = simulator(loop(), fileSize);
+    tt = new TimeTravel(budget, 4);
+    sim.setTimeTravel(tt);
+    for (int i = 0; i < 200; i++) {
+      sim.step(1);
+      if (tt.size() > 1) assertTrue("" + tt.bytes(), tt.bytes() <= budget + fileSize * 2);
+    }
+    assertTrue(tt.earliest() > 0);
+  }
+
+  /** チェックポイントの間隔は1以上 */
+  @Test(expected = SimulateException.class)
+  public void badInterval() {
+    new TimeTravel(1000, 0);
+  }
+
+  /** ファイルにレコードを追加し、レコード数をINT1に入れるループ */
+  private static Object loop() {
+    return new Compound(
+      new Assign(Register.DAT1, "XY"),
+      new InfiniteLoop(
+        new RecordWrite(new Filename("A.DAT"), 2, Register.DAT1),
+        new RecordCount(new Filename("A.DAT"), 2, Register.INT1)
+      )
+    );
+  }
+
+  private static Simulator simulator(Object body, int fileSize) throws IOException {
+    Title title = new Title("TEST", "1.0").setStartScreen(StartScreen.NONE);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new Generator(title, body).outputHTC(out);
+    HTCCode code = new HTCCode(new ByteArrayInputStream(out.toByteArray()));
+    FileArea fileArea = new FileArea();
+    fileArea.putFile(FILENAME, new byte[fileSize]);
+    return new Simulator(code, fileArea, new FrameBuffer(16, 8), new RegisterStore());
+  }
+}
@@ -0,0 +1,260 @@
+package com.cm55.phl.sim;
+
+import java.io.*;
+
+import com.cm55.phl.*;
+import com.cm55.phl.PHL.*;
+import com.cm55.phl.sim.FileArea.*;
+import com.cm55.phl.sim.LinkedCode.*;
+import com.cm55.phl.sim.Simulator.*;
+
+/**
+ * 実行トレース
+ * <p>
+ * 実行したコマンドごとに固定長のレコードを、あらかじめ確保したリングバッファに
+ * 書き込む。イベントごとのオブジェクト作成はない。バッファが一杯になると古い
+ * レコードから上書きされる。Simulator.setTracer()で設定すると、プロファイラと
+ * 同様にリンク済みコードの全ノードが包まれる。
+ * </p>
+ * <p>
+ * 一レコードはlong四つで、以下を保持する。
+ * </p>
+ * <ul>
+ * <li>実行コマンド数
+ * <li>プログラムカウンタ、コマンド種類、実行後の状態、ファイル操作
+ * <li>実行後のRSLT、コマンド中で最後に変更されたレジスタ（ユーザレジスタを優先）
+ * <li>そのレジスタの値（整数はそのまま、実数はビット列、文字列はハッシュ値）、
+ * ファイル操作後のレコードポインタ
+ * </ul>
+ * <p>
+ * 書き込みはシミュレータのスレッドのみで行われる。dump()、writeTo()は
+ * シミュレータが停止している間に呼び出すこと。
+ * </p>
+ */
+public class Tracer implements RegisterStore.Listener, FileArea.Listener {
+
+  /** 一レコードのlong数 */
+  static final int RECORD_LONGS = 4;
+
+  /** ファイル操作なし */
+  public static final int FILE_NONE = 0;
+
+  /** ファイル読込 */
+  public static final int FILE_READ = 1;
+
+  /** ファイル書込み */
+  public static final int FILE_WRITE = 2;
+
+  /** ファイルの識別 */
+  private static final int MAGIC = 0x50484c54; // "PHLT"
+
+  /** バッファ */
+  protected final long[]buffer;
+
+  /** レコード数-1。レコード数は2のべき乗 */
+  protected final int mask;
+
+  /** これまでに書き込んだレコード数 */
+  protected long sequence;
+
+  /** 対象シミュレータ */
+  protected Simulator sim;
+
+  /** 現在のコマンドで最後に変更されたレジスタ。なければnull */
+  private Register lastRegister;
+
+  /** 現在のコマンドのファイル操作 */
+  private int fileOp;
+
+  /** 現在のコマンドのファイル操作後のレコードポインタ */
+  private int filePointer;
+
+  /** 保持するレコード数を指定して作成する。2のべき乗に切り上げられる */
+  public Tracer(int records) {
+    int size = Integer.highestOneBit(Math.max(1, records - 1)) << 1;
+    buffer = new long[size * RECORD_LONGS];
+    mask = size - 1;
+  }
+
+  /** シミュレータに接続する */
+  void attach(Simulator sim) {
+    detach();
+    this.sim = sim;
+    sim.regStore.addListener(this);
+    sim.fileArea.addListener(this);
+  }
+
+  /** シミュレータから切り離す */
+  void detach() {
+    if (sim == null) return;
+    sim.regStore.removeListener(this);
+    sim.fileArea.removeListener(this);
+    sim = null;
+  }
+
+  /** リンク済みコードのノードをトレースノードで包む */
+  void install(LinkedCode linked) {
+    Node[]nodes = linked.nodes;
+    for (int i = 0; i < nodes.length; i++) nodes[i] = new TraceNode(nodes[i]);
+  }
+
+  /** トレースノード */
+  class TraceNode extends WrapperNode {
+    TraceNode(Node original) {
+      super(original);
+    }
+    @Override
+    public int execute(Simulator sim, int pc) {
+      int next = original.execute(sim, pc);
+      record(pc, command.cmd);
+      return next;
+    }
+  }
+
+  @Override
+  public void changed(Register register) {
+    if (register == Register.RSLT) return;
+    if (lastRegister == null || !register.system()) lastRegister = register;
+  }
+
+  @Override
+  public void accessed(MemoryFile file, boolean write) {
+    fileOp = write? FILE_WRITE:FILE_READ;
+    filePointer = file.recordPointer;
+  }
+
+  /** 一レコードを書き込む */
+  protected void record(int pc, Cmd cmd) {
+    RegisterStore regStore = sim.regStore;
+    int slot = (int)(sequence++ & mask) * RECORD_LONGS;
+    int registerNumber = 0;
+    int value = 0;
+    Register register = lastRegister;
+    if (register != null) {
+      registerNumber = register.ordinal() + 1;
+      int index = register.ordinal();
+      switch (register.type()) {
+      case INTEGER: value = regStore.ints[index]; break;
+      case FLOAT: value = Float.floatToIntBits(regStore.floats[index]); break;
+      default:
+        SJIS sjis = regStore.strings[index];
+        value = sjis == null? 0:sjis.hashCode();
+        break;
+      }
+    }
+    buffer[slot] = sim.instructionCount;
+    buffer[slot + 1] = ((long)pc << 32) | (cmd.ordinal() << 24) |
+        (sim.status.ordinal() << 16) | (fileOp << 8);
+    buffer[slot + 2] = ((long)regStore.ints[Register.RSLT.ordinal()] << 32) | registerNumber;
+    buffer[slot + 3] = ((long)value << 32) | (filePointer & 0xffffffffL);
+    lastRegister = null;
+    fileOp = FILE_NONE;
+    filePointer = 0;
+  }
+
+  /** 保持しているレコード数 */
+  public int size() {
+    return (int)Math.min(sequence, mask + 1);
+  }
+
+  /** 保持しているレコードを古い順にlong配列で取得する */
+  public long[]toArray() {
+    int size = size();
+    long[]result = new long[size * RECORD_LONGS];
+    long first = sequence - size;
+    for (int i = 0; i < size; i++) {
+      int slot = (int)((first + i) & mask) * RECORD_LONGS;
+      System.arraycopy(buffer, slot, result, i * RECORD_LONGS, RECORD_LONGS);
+    }
+    return result;
+  }
+
+  /** 保持しているレコードを捨てる */
+  public void clear() {
+    sequence = 0;
+  }
+
+  /** 保持しているレコードをバイナリで書き出す */
+  public void writeTo(OutputStream out) throws IOException {
+    long[]records = toArray();
+    DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+    data.writeInt(MAGIC);
+    data.writeInt(records.length / RECORD_LONGS);
+    for (long value: records) data.writeLong(value);
+    data.flush();
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // デコード
+  /////////////////////////////////////////////////////////////////////////////
+
+  /** バイナリを読み込む */
+  public static long[]read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+    if (data.readInt() != MAGIC) throw new IOException("トレースファイルではありません");
+    long[]records = new long[data.readInt() * RECORD_LONGS];
+    for (int i = 0; i < records.length; i++) records[i] = data.readLong();
+    return records;
+  }
+
+  /** 保持しているレコードを、コードの逆アセンブルと共に出力する */
+  public void dump(HTCCode code, PrintStream out) {
+    dump(toArray(), code, out);
+  }
+
+  /** レコードをコードの逆アセンブルと共に出力する */
+  public static void dump(long[]records, HTCCode code, PrintStream out) {
+    Cmd[]cmds = Cmd.values();
+    Status[]statuses = Status.values();
+    Register[]registers = Register.values();
+    for (int i = 0; i < records.length; i += RECORD_LONGS) {
+      long count = records[i];
+      int pc = (int)(records[i + 1] >>> 32);
+      Cmd cmd = cmds[(int)(records[i + 1] >>> 24) & 0xff];
+      Status status = statuses[(int)(records[i + 1] >>> 16) & 0xff];
+      int fileOp = (int)(records[i + 1] >>> 8) & 0xff;
+      int rslt = (int)(records[i + 2] >>> 32);
+      int registerNumber = (int)records[i + 2] & 0xffff;
+      int value = (int)(records[i + 3] >>> 32);
+      int filePointer = (int)records[i + 3];
+
+      StringBuilder s = new StringBuilder();
+      s.append(String.format("%10d %5d RSLT=%-3d", count, pc, rslt));
+      if (status != Status.RUNNING) s.append(" ").append(status);
+      if (registerNumber > 0) {
+        Register register = registers[registerNumber - 1];
+        s.append(" ").append(register).append("=");
+        switch (register.type()) {
+        case INTEGER: s.append(value); break;
+        case FLOAT: s.append(Float.intBitsToFloat(value)); break;
+        default: s.append(String.format("#%08x", value)); break;
+        }
+      }
+      if (fileOp != FILE_NONE)
+        s.append(fileOp == FILE_WRITE? " W@":" R@").append(filePointer);
+      s.append("  ");
+      if (code != null && pc < code.numCommands()) s.append(code.getCommand(pc));
+      else s.append(cmd);
+      out.println(s);
+    }
+  }
+
+  /** トレースファイルとHTCファイルを指定して出力する。HTCファイルは省略可 */
+  public static void main(String[]args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("usage: Tracer <trace file> [<htc file>]");
+      return;
+    }
+    long[]records;
+    try (InputStream in = new FileInputStream(args[0])) {
+      records = read(in);
+    }
+    HTCCode code = null;
+    if (args.length > 1) {
+      try (InputStream in = new FileInputStream(args[1])) {
+        code = new HTCCode(in);
+      }
+    }
+    dump(records, code, System.out);
+  }
+}